@@ -0,0 +1,49 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.Command;
+import org.hetils.jitpr.CompiledCommand;
+import org.hetils.jitpr.Interpreter;
+import org.hetils.jitpr.Opt;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// A hand written VarFunc against the same command bound from an annotated method.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BindingBenchmark {
+
+    public static class Bound {
+        @Command("scale")
+        public long scale(String name, int replicas, @Opt("1") long factor) { return name.length() + (long) replicas * factor; }
+    }
+
+    Interpreter it;
+    CompiledCommand manual;
+    CompiledCommand bound;
+
+    @Setup
+    public void setup() {
+        it = Commands.interpreter();
+        it.compileThreshold(0);
+        it.rootCommand("mscale", vars -> {
+            String name = vars.get(0);
+            int replicas = vars.getInt(1);
+            long factor = vars.getLongOr(2, 1);
+            return name.length() + (long) replicas * factor;
+        });
+        it.bind(new Bound());
+        manual = it.compile("mscale web 3 2");
+        bound = it.compile("scale web 3 2");
+    }
+
+    @Benchmark
+    public Object manual() { return it.handle(manual); }
+
+    @Benchmark
+    public Object bound() { return it.handle(bound); }
+}
@@ -0,0 +1,56 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.Interpreter;
+import org.hetils.jitpr.Mapper;
+import org.hetils.jitpr.VarFunc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The command set every benchmark runs against.
+final class Commands {
+    private Commands() {}
+
+    static Interpreter interpreter() {
+        Interpreter it = new Interpreter();
+        it.rootCommand("add", vars -> vars.getInt(0) + vars.getInt(1));
+
+        // svc -> node -> disk -> usage, each level a Mapper
+        Map<String, VarFunc> disk = new HashMap<>();
+        disk.put("usage", vars -> vars.getIntOr(0, 0) + 1);
+        disk.put("name", vars -> "sda");
+        Mapper disk_mapper = new Mapper(disk);
+        Map<String, VarFunc> node = new HashMap<>();
+        node.put("disk", disk_mapper.asCommand());
+        node.put("id", vars -> 7);
+        Mapper node_mapper = new Mapper(node);
+        Map<String, VarFunc> svc = new HashMap<>();
+        svc.put("node", node_mapper.asCommand());
+        svc.put("status", vars -> "up");
+        it.rootCommand("svc", svc);
+
+        // the same tree, frozen
+        Map<String, VarFunc> fnode = new HashMap<>(node);
+        Mapper frozen_disk = new Mapper(new HashMap<>(disk)).freeze();
+        fnode.put("disk", frozen_disk.asCommand());
+        Mapper frozen_node = new Mapper(fnode).freeze();
+        Map<String, VarFunc> fsvc = new HashMap<>(svc);
+        fsvc.put("node", frozen_node.asCommand());
+        it.rootCommand("fsvc", new Mapper(fsvc).freeze());
+        return it;
+    }
+
+    static String nested(int depth) {
+        StringBuilder sb = new StringBuilder("print");
+        for (int i = 0; i < depth; i++) sb.append(" (print a").append(i);
+        sb.append(" x");
+        sb.append(")".repeat(depth));
+        return sb.toString();
+    }
+
+    static String wide(int bytes) {
+        StringBuilder sb = new StringBuilder("print");
+        while (sb.length() < bytes) sb.append(" (print a (add 1 2) \"b c\")");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,50 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.InputParser;
+import org.hetils.jitpr.Interpreter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Cost of one keystroke at the end of a line of the given length: validating it incrementally, validating it
+// by compiling the whole line again, and completing the word being typed.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InputBenchmark {
+
+    @Param({"64", "4096"})
+    int length;
+
+    Interpreter it;
+    InputParser parser;
+    String line;
+
+    @Setup
+    public void setup() {
+        it = Commands.interpreter();
+        it.planCacheSize(0);
+        line = Commands.wide(length) + " (svc node disk u";
+        parser = it.newInputParser().append(line);
+    }
+
+    @Benchmark
+    public boolean keystroke() {
+        parser.append('s');
+        boolean complete = parser.isComplete();
+        parser.backspace();
+        return complete;
+    }
+
+    @Benchmark
+    public boolean recompile() {
+        return !it.compile(line + 's').hasError();
+    }
+
+    @Benchmark
+    public List<String> complete() { return parser.complete(); }
+}
@@ -0,0 +1,41 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.CompiledCommand;
+import org.hetils.jitpr.Interpreter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// A command that reads one of its ( ) arguments and ignores the other, an expensive lookup, eager and lazy.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LazyBenchmark {
+
+    @Param({"false", "true"})
+    boolean lazy;
+
+    Interpreter it;
+    CompiledCommand pick;
+    CompiledCommand cond;
+
+    @Setup
+    public void setup() {
+        it = Commands.interpreter();
+        it.lazySubcommands(lazy);
+        it.rootCommand("lookup", vars -> String.format("%08.3f|%s", vars.getDouble(0), vars.get(1).toString().toUpperCase()));
+        it.rootCommand("first", vars -> vars.get(0));
+        pick = it.compile("first (add 1 2) (lookup 1.5 a)");
+        // if is lazy either way
+        cond = it.compile("if (add 1 2) (add 3 4) (lookup 1.5 a)");
+    }
+
+    @Benchmark
+    public Object pick() { return it.handle(pick); }
+
+    @Benchmark
+    public Object cond() { return it.handle(cond); }
+}
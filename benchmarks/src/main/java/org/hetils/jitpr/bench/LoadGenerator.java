@@ -0,0 +1,133 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.CommandServer;
+import org.hetils.jitpr.LatencyHistogram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+// Drives a CommandServer over loopback: every connection writes a batch of pipelined requests, reads all the
+// answers and goes again. Without --port or --unix it starts a server on the benchmark command set itself.
+//   java -cp benchmarks/target/benchmarks.jar org.hetils.jitpr.bench.LoadGenerator
+//        [--port n | --unix path | --local-unix] [--connections 64] [--pipeline 16] [--seconds 5]
+//        [--framing line|length] [--command "add 1 2"]
+public final class LoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        int connections = 64, pipeline = 16, seconds = 5;
+        CommandServer.Framing framing = CommandServer.Framing.LINE;
+        String command = "add 1 2";
+        SocketAddress address = null;
+        boolean local_unix = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port" -> address = new InetSocketAddress("127.0.0.1", Integer.parseInt(args[++i]));
+                case "--unix" -> address = UnixDomainSocketAddress.of(args[++i]);
+                case "--local-unix" -> local_unix = true;
+                case "--connections" -> connections = Integer.parseInt(args[++i]);
+                case "--pipeline" -> pipeline = Integer.parseInt(args[++i]);
+                case "--seconds" -> seconds = Integer.parseInt(args[++i]);
+                case "--framing" -> framing = CommandServer.Framing.valueOf(args[++i].toUpperCase());
+                case "--command" -> command = args[++i];
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        CommandServer server = null;
+        Path socket_file = null;
+        if (address == null) {
+            server = new CommandServer(Commands.interpreter()).framing(framing);
+            if (local_unix) {
+                socket_file = Files.createTempDirectory("jitpr").resolve("server.sock");
+                address = server.bind(socket_file);
+            } else address = server.bind(0);
+            server.start();
+        }
+
+        byte[] batch = batch(command, pipeline, framing);
+        LatencyHistogram latency = new LatencyHistogram();
+        LongAdder done = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            SocketAddress to = address;
+            CommandServer.Framing f = framing;
+            int depth = pipeline;
+            Thread t = new Thread(() -> {
+                try (SocketChannel ch = to instanceof UnixDomainSocketAddress ? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open()) {
+                    ch.connect(to);
+                    ByteBuffer out = ByteBuffer.wrap(batch);
+                    ByteBuffer in = ByteBuffer.allocateDirect(1 << 16);
+                    while (System.nanoTime() < deadline) {
+                        long t0 = System.nanoTime();
+                        out.clear();
+                        while (out.hasRemaining()) ch.write(out);
+                        read(ch, in, depth, f);
+                        latency.record(System.nanoTime() - t0);
+                        done.add(depth);
+                    }
+                } catch (IOException e) {
+                    System.err.println("connection failed: " + e);
+                }
+            }, "load-" + c);
+            threads.add(t);
+            t.start();
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads) t.join();
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s %s, %d connections, pipeline %d%n", address, framing, connections, pipeline);
+        System.out.printf("%.0f requests/s, batch latency p50 %.1f us, p99 %.1f us, max %.1f us%n",
+                done.sum() / secs, latency.percentile(50) / 1e3, latency.percentile(99) / 1e3, latency.max() / 1e3);
+        if (server != null) server.close();
+        if (socket_file != null) Files.deleteIfExists(socket_file.getParent());
+    }
+
+    private static byte[] batch(String command, int pipeline, CommandServer.Framing framing) {
+        byte[] body = command.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = ByteBuffer.allocate(pipeline * (body.length + 4));
+        for (int i = 0; i < pipeline; i++) {
+            if (framing == CommandServer.Framing.LENGTH) b.putInt(body.length);
+            b.put(body);
+            if (framing == CommandServer.Framing.LINE) b.put((byte) '\n');
+        }
+        byte[] out = new byte[b.position()];
+        b.flip().get(out);
+        return out;
+    }
+
+    // reads until count responses have arrived
+    private static void read(SocketChannel ch, ByteBuffer in, int count, CommandServer.Framing framing) throws IOException {
+        in.clear();
+        int seen = 0, pos = 0;
+        while (seen < count) {
+            if (ch.read(in) < 0) throw new IOException("closed by server");
+            int end = in.position();
+            if (framing == CommandServer.Framing.LINE) {
+                for (; pos < end; pos++) if (in.get(pos) == '\n') seen++;
+            } else {
+                while (end - pos >= 4 && end - pos - 4 >= in.getInt(pos)) {
+                    pos += 4 + in.getInt(pos);
+                    seen++;
+                }
+            }
+            if (!in.hasRemaining()) {
+                // keep the partial response only
+                in.flip().position(pos);
+                in.compact();
+                pos = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.Interpreter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// The same compound command with changing values, built as a String and processed, called as a macro from a
+// command line, and called as a macro from Java. The values change every op, so built Strings never hit the plan
+// cache, which is what string building in a loop looks like.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MacroBenchmark {
+
+    Interpreter it;
+    int n;
+
+    @Setup
+    public void setup() {
+        it = Commands.interpreter();
+        it.defineMacro("m", "add (add $1 (add $2 1)) (add (add $1 2) (add $2 3))");
+    }
+
+    @Benchmark
+    public Object spliced() {
+        int a = n++ & 0xFFFF, b = a ^ 0x55;
+        return it.handle("add (add " + a + " (add " + b + " 1)) (add (add " + a + " 2) (add " + b + " 3))");
+    }
+
+    @Benchmark
+    public Object called() {
+        int a = n++ & 0xFFFF, b = a ^ 0x55;
+        return it.handle("m " + a + " " + b);
+    }
+
+    @Benchmark
+    public Object java() {
+        int a = n++ & 0xFFFF, b = a ^ 0x55;
+        return it.handleMacro("m", a, b);
+    }
+}
@@ -0,0 +1,47 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.CompiledCommand;
+import org.hetils.jitpr.Interpreter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Compiling and running ever deeper ( ) nesting, run through the tiered plan where there is one and always
+// through the interpreter's own evaluator. Neither needs more than the default thread stack.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NestingBenchmark {
+
+    @Param({"1", "16", "256", "4096"})
+    int depth;
+
+    Interpreter it;
+    Interpreter interpreted;
+    String input;
+    CompiledCommand plan;
+
+    @Setup
+    public void setup() {
+        it = Commands.interpreter();
+        input = Commands.nested(depth);
+        plan = it.compile(input);
+        interpreted = Commands.interpreter();
+        interpreted.compileThreshold(0);
+    }
+
+    @Benchmark
+    public CompiledCommand compile() {
+        it.clearPlanCache();
+        return it.compile(input);
+    }
+
+    @Benchmark
+    public String run() { return it.process(plan); }
+
+    @Benchmark
+    public String interpreted() { return interpreted.process(plan); }
+}
@@ -0,0 +1,62 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.CompiledCommand;
+import org.hetils.jitpr.Interpreter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+// A print of many items into a buffer the caller keeps, once built into a String and appended and once written
+// straight into it with process(plan, out). Run with -prof gc, the String and its copy are what streaming saves.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputBenchmark {
+
+    @Param({ "100", "10000" })
+    int items;
+
+    Interpreter it;
+    CompiledCommand plan;
+    StringBuilder out;
+    Writer writer;
+
+    @Setup
+    public void setup() {
+        it = Commands.interpreter();
+        StringBuilder sb = new StringBuilder("print");
+        for (int i = 0; i < items; i++) sb.append(" item").append(i);
+        plan = it.compile(sb.toString());
+        out = new StringBuilder();
+        writer = Writer.nullWriter();
+    }
+
+    @Benchmark
+    public StringBuilder built() {
+        out.setLength(0);
+        return out.append(it.process(plan));
+    }
+
+    @Benchmark
+    public StringBuilder streamed() {
+        out.setLength(0);
+        it.process(plan, out);
+        return out;
+    }
+
+    @Benchmark
+    public Writer builtWriter() throws Exception {
+        writer.write(it.process(plan));
+        return writer;
+    }
+
+    @Benchmark
+    public Writer streamedWriter() {
+        it.process(plan, writer);
+        return writer;
+    }
+}
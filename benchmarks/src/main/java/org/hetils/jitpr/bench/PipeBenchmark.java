@@ -0,0 +1,45 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.CompiledCommand;
+import org.hetils.jitpr.Interpreter;
+import org.hetils.jitpr.VarFunc;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// The same pipelines with the built in stream commands streaming and, as plain commands, reading out every stage
+// before the next one. Run with -prof gc for the allocation side.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipeBenchmark {
+
+    @Param({"true", "false"})
+    boolean streaming;
+
+    Interpreter it;
+    // stops early, the source is only read up to the 10th match
+    CompiledCommand head;
+    // reads everything
+    CompiledCommand all;
+
+    @Setup
+    public void setup() {
+        it = Commands.interpreter();
+        if (!streaming) for (String name : new String[] { "range", "grep", "take", "count" }) {
+            VarFunc f = it.getCommand(name);
+            it.rootCommand(name, vars -> f.apply(vars));
+        }
+        head = it.compile("range 1 100000 | grep 7 | take 10");
+        all = it.compile("range 1 100000 | grep 7 | count");
+    }
+
+    @Benchmark
+    public Object head() { return it.handle(head); }
+
+    @Benchmark
+    public Object all() { return it.handle(all); }
+}
@@ -0,0 +1,62 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.CompiledCommand;
+import org.hetils.jitpr.Interpreter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessBenchmark {
+
+    Interpreter it;
+    CompiledCommand print;
+
+    @Setup
+    public void setup() {
+        it = Commands.interpreter();
+        it.process("$x = 42");
+        print = it.compile("print a b c");
+    }
+
+    @Benchmark
+    public String print() { return it.process("print a b c"); }
+
+    @Benchmark
+    public String printCompiled() { return it.process(print); }
+
+    @Benchmark
+    public String printUncached() {
+        it.clearPlanCache();
+        return it.process("print a b c");
+    }
+
+    @Benchmark
+    public String route() { return it.process("svc node disk usage 5"); }
+
+    @Benchmark
+    public String routeFrozen() { return it.process("fsvc node disk usage 5"); }
+
+    @Benchmark
+    public String routeShallow() { return it.process("svc status"); }
+
+    @Benchmark
+    public String assign() { return it.process("$y = (add 1 2)"); }
+
+    @Benchmark
+    public String substitute() { return it.process("print $x $x ~"); }
+
+    @Benchmark
+    public String syntaxError() { return it.process("print \"a b"); }
+
+    @Benchmark
+    public String unknownCommand() { return it.process("nope a b"); }
+
+    @Benchmark
+    public String badRoute() { return it.process("svc node bogus"); }
+}
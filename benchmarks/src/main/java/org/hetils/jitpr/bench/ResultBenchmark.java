@@ -0,0 +1,37 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.CompiledCommand;
+import org.hetils.jitpr.Interpreter;
+import org.hetils.jitpr.Result;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Bad input and an assignment, as text through process and as a Result through execute that's only checked for
+// its status. Run with -prof gc for the allocation side.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultBenchmark {
+
+    @Param({"print 'unclosed quote", "nope 1 2", "$x = 5"})
+    String input;
+
+    Interpreter it;
+    CompiledCommand plan;
+
+    @Setup
+    public void setup() {
+        it = Commands.interpreter();
+        plan = it.compile(input);
+    }
+
+    @Benchmark
+    public String process() { return it.process(plan); }
+
+    @Benchmark
+    public Result.Status execute() { return it.execute(plan).getStatus(); }
+}
@@ -0,0 +1,35 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.CompiledCommand;
+import org.hetils.jitpr.Interpreter;
+import org.hetils.jitpr.VarFunc;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// A pure command with some real work in it, repeated as ( ) arguments, with and without the result cache.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultCacheBenchmark {
+
+    @Param({"0", "1024"})
+    int size;
+
+    Interpreter it;
+    CompiledCommand plan;
+
+    @Setup
+    public void setup() {
+        it = Commands.interpreter();
+        it.resultCacheSize(size);
+        it.rootCommand("fmt", VarFunc.pure(vars -> String.format("%08.3f|%s", vars.getDouble(0), vars.get(1).toString().toUpperCase())));
+        plan = it.compile("print (fmt 1.5 a) (fmt 2.25 b) (fmt 1.5 a) (fmt 3 c)");
+    }
+
+    @Benchmark
+    public Object run() { return it.handle(plan); }
+}
@@ -0,0 +1,39 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.CompiledCommand;
+import org.hetils.jitpr.Interpreter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Lexing cost per input size, the score should grow linearly from 1 KB to 1 MB.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScalingBenchmark {
+
+    @Param({"1024", "16384", "262144", "1048576"})
+    int bytes;
+
+    Interpreter it;
+    String wide;
+    String deep;
+
+    @Setup
+    public void setup() {
+        it = Commands.interpreter();
+        it.planCacheSize(0);
+        wide = Commands.wide(bytes);
+        // every group nested into the previous one
+        deep = Commands.nested(bytes / 12);
+    }
+
+    @Benchmark
+    public CompiledCommand wide() { return it.compile(wide); }
+
+    @Benchmark
+    public CompiledCommand deep() { return it.compile(deep); }
+}
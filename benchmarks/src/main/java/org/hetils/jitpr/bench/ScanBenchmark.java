@@ -0,0 +1,59 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.CompiledCommand;
+import org.hetils.jitpr.Interpreter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Compiling big scripts, once scanned with the Vector API and once one char at a time, which is what the same
+// code does in a JVM without the module. Quoted are long quoted payloads, the case the vector scan is for, words
+// are short plain tokens that never fill a vector, to show what it costs there.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+
+    @Param({ "10000", "1000000", "10000000" })
+    int chars;
+
+    @Param({ "quoted", "words" })
+    String shape;
+
+    Interpreter it;
+    String input;
+
+    @Setup
+    public void setup() {
+        it = Commands.interpreter();
+        StringBuilder sb = new StringBuilder("print");
+        int n = 0;
+        while (sb.length() < chars) {
+            if (shape.equals("quoted")) {
+                sb.append(" \"");
+                for (int i = 0; i < 2000; i++) sb.append((char) ('a' + (n + i) % 26)).append(i % 9 == 8 ? " " : "");
+                sb.append("\\\" done\"");
+            }
+            else sb.append(" w").append(n % 1000);
+            // a nested command now and then
+            if (++n % 50 == 0) sb.append(" (add 1 2)");
+        }
+        input = sb.toString();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+    public CompiledCommand vector() {
+        it.clearPlanCache();
+        return it.compile(input);
+    }
+
+    @Benchmark
+    public CompiledCommand scalar() {
+        it.clearPlanCache();
+        return it.compile(input);
+    }
+}
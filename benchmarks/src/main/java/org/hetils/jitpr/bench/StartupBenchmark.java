@@ -0,0 +1,85 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.Interpreter;
+import org.hetils.jitpr.Mapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.TimeUnit;
+
+// A fresh JVM per measurement, time from an empty interpreter to the first command's result with the 10k commands
+// of StartupModule registered up front or found through ServiceLoader and registered by name. footprint reports,
+// as counters summed over the forks, what the interpreter keeps afterwards on the heap and in metaspace, its time
+// includes two full gcs.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(5)
+public class StartupBenchmark {
+
+    @Param({"eager", "lazy"})
+    String registration;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public long heapKb;
+        public long metaspaceKb;
+    }
+
+    long heap;
+    long metaspace;
+    Interpreter it;
+
+    @Setup
+    public void setup() {
+        gc();
+        heap = heap();
+        metaspace = metaspace();
+    }
+
+    private Interpreter start() {
+        Interpreter it = new Interpreter();
+        if (registration.equals("lazy")) {
+            if (it.loadModules() == 0) throw new IllegalStateException("StartupModule not found");
+        } else {
+            Mapper m = new StartupModule().getMapper();
+            for (int i = 0; i < StartupModule.COMMANDS; i++) it.rootCommand(StartupModule.name(i), m.get(StartupModule.name(i)));
+        }
+        return it;
+    }
+
+    @Benchmark
+    public Object firstCommand() {
+        it = start();
+        return it.handle("cmd5000 x");
+    }
+
+    @Benchmark
+    public Object footprint(Footprint fp) {
+        it = start();
+        Object r = it.handle("cmd5000 x");
+        gc();
+        fp.heapKb = (heap() - heap) >> 10;
+        fp.metaspaceKb = (metaspace() - metaspace) >> 10;
+        return r;
+    }
+
+    private static void gc() {
+        System.gc();
+        System.gc();
+    }
+    private static long heap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+    private static long metaspace() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.NON_HEAP && pool.getName().contains("Metaspace")) used += pool.getUsage().getUsed();
+        return used;
+    }
+}
@@ -0,0 +1,61 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.CommandModule;
+import org.hetils.jitpr.Interpreter;
+import org.hetils.jitpr.Mapper;
+import org.hetils.jitpr.VarFunc;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.invoke.*;
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.lang.invoke.MethodType.methodType;
+
+// 10k commands, each its own class as if it were a lambda of its own, made the way a lambda is on first use.
+// Registered through META-INF/services, see StartupBenchmark. Commands can be made one at a time.
+public final class StartupModule implements CommandModule {
+
+    static final int COMMANDS = 10_000;
+
+    static String name(int i) { return "cmd" + i; }
+
+    @Override
+    public @NotNull Collection<String> commands() {
+        return new AbstractList<>() {
+            @Override public String get(int i) { return name(i); }
+            @Override public int size() { return COMMANDS; }
+        };
+    }
+
+    @Override
+    public Mapper getMapper() {
+        Map<String, VarFunc> commands = new HashMap<>(COMMANDS * 2);
+        for (int i = 0; i < COMMANDS; i++) commands.put(name(i), make(i));
+        return new Mapper(commands).freeze();
+    }
+
+    @Override
+    public VarFunc command(@NotNull String name) {
+        return make(Integer.parseInt(name.substring(3)));
+    }
+
+    private static VarFunc make(int i) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle run = lookup.findStatic(StartupModule.class, "run", methodType(Object.class, int.class, Interpreter.VariableSet.class));
+            CallSite site = LambdaMetafactory.metafactory(lookup, "apply",
+                    methodType(VarFunc.class, int.class), methodType(Object.class, Object.class),
+                    run, methodType(Object.class, Interpreter.VariableSet.class));
+            return (VarFunc) site.getTarget().invoke(i);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object run(int i, Interpreter.VariableSet vars) {
+        return vars.length() > 0 ? i + ":" + vars.get(0) : i;
+    }
+}
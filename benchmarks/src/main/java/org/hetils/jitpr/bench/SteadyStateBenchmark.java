@@ -0,0 +1,77 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.CompiledCommand;
+import org.hetils.jitpr.Interpreter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.lang.management.ManagementFactory;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+// A warmed up command run over and over, from a plan, a String and a CharBuffer, with the execution contexts
+// pooled or not. Pooled runs should allocate nothing, every measurement iteration checks that with the thread's
+// allocation counter and fails past a few bytes per op. Run with -prof gc to see the same from the outside.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SteadyStateBenchmark {
+
+    // rounding and the odd allocation of JIT or JMH code on this thread, far below a VariableSet
+    private static final double MAX_BYTES_PER_OP = 4;
+
+    @Param({ "true", "false" })
+    boolean pooled;
+
+    Interpreter it;
+    CompiledCommand plan;
+    String input;
+    CharBuffer buffer;
+    com.sun.management.ThreadMXBean threads;
+    long ops;
+    long allocated;
+
+    @Setup
+    public void setup() {
+        it = Commands.interpreter();
+        it.poolContexts(pooled);
+        input = "add 1 2";
+        plan = it.compile(input);
+        buffer = CharBuffer.wrap(input.toCharArray());
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    @Setup(Level.Iteration)
+    public void start() {
+        ops = 0;
+        allocated = threads.getCurrentThreadAllocatedBytes();
+    }
+
+    @TearDown(Level.Iteration)
+    public void check(BenchmarkParams params) {
+        double per_op = (double) (threads.getCurrentThreadAllocatedBytes() - allocated) / Math.max(ops, 1);
+        if (pooled && per_op > MAX_BYTES_PER_OP)
+            throw new IllegalStateException(params.getBenchmark() + " allocated " + per_op + " B/op in the steady state");
+    }
+
+    @Benchmark
+    public Object plan() {
+        ops++;
+        return it.handle(plan);
+    }
+
+    @Benchmark
+    public Object string() {
+        ops++;
+        return it.handle(input);
+    }
+
+    @Benchmark
+    public Object buffer() {
+        ops++;
+        return it.handle(buffer);
+    }
+}
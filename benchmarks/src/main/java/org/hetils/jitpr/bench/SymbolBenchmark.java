@@ -0,0 +1,41 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.CompiledCommand;
+import org.hetils.jitpr.Interpreter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// $ variables through the interpreter: reads substituted into a command, an assignment, and a plain command for
+// the ~ last output write every top level command makes. Run with -prof gc for the allocation side.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SymbolBenchmark {
+
+    Interpreter it;
+    CompiledCommand read;
+    CompiledCommand assign;
+    CompiledCommand plain;
+
+    @Setup
+    public void setup() {
+        it = Commands.interpreter();
+        for (int i = 0; i < 256; i++) it.setVar("var" + i, i);
+        read = it.compile("add $var17 $var201");
+        assign = it.compile("$var42 = 7");
+        plain = it.compile("add 1 2");
+    }
+
+    @Benchmark
+    public Object read() { return it.handle(read); }
+
+    @Benchmark
+    public Object assign() { return it.handle(assign); }
+
+    @Benchmark
+    public Object plain() { return it.handle(plain); }
+}
@@ -0,0 +1,46 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.Interpreter;
+import org.hetils.jitpr.Session;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// One interpreter shared by every thread, each thread with its own session.
+// Run with -t 1, -t 2, ... -t <cores> to see the scaling.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThreadedBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        Interpreter it;
+        @Setup
+        public void setup() {
+            it = Commands.interpreter();
+            it.process("$x = 42");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PerThread {
+        Session session;
+        @Setup
+        public void setup(Shared shared) { session = shared.it.newSession(); }
+    }
+
+    @Benchmark
+    public String print(PerThread t) { return t.session.process("print a b c"); }
+
+    @Benchmark
+    public String route(PerThread t) { return t.session.process("svc node disk usage 5"); }
+
+    @Benchmark
+    public String assign(PerThread t) { return t.session.process("$y = (add $x 2)"); }
+
+    @Benchmark
+    public String sharedGlobals(Shared s) { return s.it.process("$y = (add $x 2)"); }
+}
@@ -0,0 +1,56 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.CompiledCommand;
+import org.hetils.jitpr.Interpreter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// The same hot plans interpreted (threshold 0) and compiled to bytecode right away (threshold 1). Wide has slot
+// indexes past what sipush holds, setup fails if its compiled class doesn't give what the interpreter gives.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TierBenchmark {
+
+    @Param({"0", "1"})
+    int threshold;
+
+    Interpreter it;
+    CompiledCommand add;
+    CompiledCommand nested;
+    CompiledCommand route;
+    CompiledCommand wide;
+
+    @Setup
+    public void setup() {
+        it = Commands.interpreter();
+        it.compileThreshold(threshold);
+        add = it.compile("add (add 1 2) (add 3 (add 4 5))");
+        nested = it.compile(Commands.nested(16));
+        route = it.compile("svc node disk usage (add 1 2)");
+        String input = "print" + " a".repeat(40000) + " (print x)";
+        wide = it.compile(input);
+        Interpreter interpreted = Commands.interpreter();
+        interpreted.compileThreshold(0);
+        String want = interpreted.process(input);
+        // the second run is the first one on the compiled class
+        for (int i = 0; i < 2; i++)
+            if (!want.equals(it.process(wide))) throw new IllegalStateException("Wide plan gave a different result at threshold " + threshold);
+    }
+
+    @Benchmark
+    public Object add() { return it.handle(add); }
+
+    @Benchmark
+    public Object nested() { return it.handle(nested); }
+
+    @Benchmark
+    public Object route() { return it.handle(route); }
+
+    @Benchmark
+    public Object wide() { return it.handle(wide); }
+}
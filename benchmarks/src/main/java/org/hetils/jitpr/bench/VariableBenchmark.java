@@ -0,0 +1,63 @@
+package org.hetils.jitpr.bench;
+
+import org.hetils.jitpr.VariableScope;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// One store shared by every thread, reads, writes and a 9 to 1 mix over 256 names, against the
+// ConcurrentHashMap the scopes used before. Run with -t 1, -t 2, ... -t <cores> to see the contention.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VariableBenchmark {
+
+    @Param({"map", "scope"})
+    String store;
+
+    static final String[] NAMES = new String[256];
+    static {
+        for (int i = 0; i < NAMES.length; i++) NAMES[i] = "var" + i;
+    }
+
+    ConcurrentHashMap<String, Object> map;
+    VariableScope scope;
+
+    @Setup
+    public void setup() {
+        map = new ConcurrentHashMap<>();
+        scope = new VariableScope();
+        for (String n : NAMES) {
+            map.put(n, n);
+            scope.set(n, n);
+        }
+    }
+
+    private Object get(String name) { return store.equals("map") ? map.get(name) : scope.get(name); }
+    private Object set(String name, Object value) { return store.equals("map") ? map.put(name, value) : scope.set(name, value); }
+
+    @Benchmark
+    public Object read() { return get(NAMES[ThreadLocalRandom.current().nextInt(NAMES.length)]); }
+
+    @Benchmark
+    public Object write() {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        return set(NAMES[r.nextInt(NAMES.length)], r.nextInt(1000));
+    }
+
+    @Benchmark
+    public Object mixed() {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        String name = NAMES[r.nextInt(NAMES.length)];
+        return r.nextInt(10) == 0 ? set(name, r.nextInt(1000)) : get(name);
+    }
+
+    // the last output variable every top level command sets
+    @Benchmark
+    public Object hotWrite() { return set("~", ThreadLocalRandom.current().nextInt(1000)); }
+}
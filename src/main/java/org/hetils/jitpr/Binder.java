@@ -0,0 +1,332 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.util.*;
+
+// Turns @Command and @Route methods into VarFuncs, once, when they're bound. Every parameter gets a converter
+// reading its argument straight out of the VariableSet, and the method, its receiver and the converters are
+// folded into a single (VariableSet)Object method handle, so a call does no reflection and no type lookups,
+// and primitive parameters are never boxed.
+final class Binder {
+    private Binder() {}
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final Class<?> VARS = Interpreter.VariableSet.class;
+
+    // thrown by converters, turned into a usage error, never seen by the caller
+    static final class ArgumentException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final int index;
+        final boolean missing;
+        ArgumentException(int index, boolean missing) {
+            super(null, null, false, false);
+            this.index = index;
+            this.missing = missing;
+        }
+    }
+
+    // a record so its fields are trusted as constants and the JIT can inline through the handle
+    record Bound(String name, String usage, MethodHandle handle, boolean blocking, boolean pure) implements VarFunc {
+        @Override
+        public Object apply(Interpreter.VariableSet vars) {
+            try {
+                return (Object) handle.invokeExact(vars);
+            } catch (ArgumentException e) {
+                return vars.err((e.missing ? "Missing" : "Invalid") + " argument " + (e.index + 1) + " for " + name + ", usage: " + usage);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+        @Override
+        public boolean isBlocking() { return blocking; }
+        @Override
+        public boolean isPure() { return pure; }
+    }
+
+    // root commands of target, a Class binds its static methods only
+    static @NotNull Map<String, VarFunc> commands(@NotNull Object target, @NotNull MethodHandles.Lookup lookup) {
+        Class<?> type = target instanceof Class<?> c ? c : target.getClass();
+        Object receiver = target instanceof Class<?> ? null : target;
+        Map<String, VarFunc> out = new LinkedHashMap<>();
+        for (Method m : annotated(type, Command.class)) {
+            Command c = m.getAnnotation(Command.class);
+            String name = c.value().isEmpty() ? m.getName() : c.value();
+            out.put(name, method(m, receiver, lookup, name, c.blocking(), c.pure()));
+        }
+        Command c = type.getAnnotation(Command.class);
+        if (c != null) {
+            VarFunc func = mapper(type, receiver, lookup, new HashSet<>()).asCommand();
+            out.put(c.value().isEmpty() ? type.getSimpleName().toLowerCase(Locale.ROOT) : c.value(), c.blocking() ? VarFunc.blocking(func) : func);
+        } else if (!annotated(type, Route.class).isEmpty())
+            throw new IllegalArgumentException(type.getName() + " has @Route methods but isn't a @Command");
+        if (out.isEmpty()) throw new IllegalArgumentException("Nothing to bind in " + type.getName());
+        return out;
+    }
+
+    private static @NotNull Mapper mapper(@NotNull Class<?> type, @Nullable Object receiver, @NotNull MethodHandles.Lookup lookup, @NotNull Set<Class<?>> path) {
+        if (!path.add(type)) throw new IllegalArgumentException("Route cycle through " + type.getName());
+        Map<String, VarFunc> routes = new HashMap<>();
+        for (Method m : annotated(type, Route.class)) {
+            Route r = m.getAnnotation(Route.class);
+            String name = r.value().isEmpty() ? m.getName() : r.value();
+            if (m.getParameterCount() == 0 && !annotated(m.getReturnType(), Route.class).isEmpty()) {
+                // group, resolved now and routed into like any other Mapper
+                Object group;
+                try {
+                    MethodHandle h = lookup.unreflect(m);
+                    group = Modifier.isStatic(m.getModifiers()) ? h.invoke() : h.invoke(instance(m, receiver));
+                } catch (RuntimeException | Error e) {
+                    throw e;
+                } catch (Throwable e) {
+                    throw new IllegalArgumentException("Couldn't resolve group " + m, e);
+                }
+                if (group == null) throw new IllegalArgumentException(m + " returned no group");
+                VarFunc func = mapper(m.getReturnType(), group, lookup, path).asCommand();
+                routes.put(name, r.blocking() ? VarFunc.blocking(func) : func);
+            } else routes.put(name, method(m, receiver, lookup, name, r.blocking(), r.pure()));
+        }
+        path.remove(type);
+        return new Mapper(routes).freeze();
+    }
+
+    static @NotNull VarFunc method(@NotNull Method m, @Nullable Object receiver, @NotNull MethodHandles.Lookup lookup, @NotNull String name,
+                                   boolean blocking, boolean pure) {
+        MethodHandle mh;
+        try {
+            mh = lookup.unreflect(m).asFixedArity();
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Can't access " + m + ", bind with a Lookup that can", e);
+        }
+        boolean is_static = Modifier.isStatic(m.getModifiers());
+        Parameter[] params = m.getParameters();
+
+        // plain (VariableSet) methods already have the VarFunc shape, let the metafactory spin a class for them
+        if (!blocking && !pure && params.length == 1 && params[0].getType() == VARS && !m.getReturnType().isPrimitive()) {
+            VarFunc f = metafactory(m, mh, is_static ? null : instance(m, receiver), lookup);
+            if (f != null) return f;
+        }
+
+        if (!is_static) mh = mh.bindTo(instance(m, receiver));
+        MethodHandle[] converters = new MethodHandle[params.length];
+        StringBuilder usage = new StringBuilder(name);
+        int index = 0;
+        for (int j = 0; j < params.length; j++) {
+            Parameter p = params[j];
+            Class<?> t = p.getType();
+            if (t == VARS) {
+                converters[j] = MethodHandles.identity(VARS);
+                continue;
+            }
+            Opt opt = p.getAnnotation(Opt.class);
+            converters[j] = converter(t, index++, opt, m);
+            String pn = p.isNamePresent() ? p.getName() : t.getSimpleName();
+            usage.append(opt == null ? " <" : " [").append(pn).append(opt == null ? '>' : ']');
+        }
+        MethodHandle folded = params.length == 0
+                ? MethodHandles.dropArguments(mh, 0, VARS)
+                // every converter reads the same VariableSet
+                : MethodHandles.permuteArguments(MethodHandles.filterArguments(mh, 0, converters),
+                        MethodType.methodType(mh.type().returnType(), VARS), new int[params.length]);
+        // void returns null, primitives are boxed only here, on the way out
+        return new Bound(name, usage.toString(), folded.asType(MethodType.methodType(Object.class, VARS)), blocking, pure);
+    }
+
+    private static @Nullable VarFunc metafactory(@NotNull Method m, @NotNull MethodHandle impl, @Nullable Object receiver,
+                                                 @NotNull MethodHandles.Lookup lookup) {
+        try {
+            MethodType factory = receiver == null
+                    ? MethodType.methodType(VarFunc.class)
+                    : MethodType.methodType(VarFunc.class, m.getDeclaringClass());
+            CallSite site = LambdaMetafactory.metafactory(lookup.hasFullPrivilegeAccess() ? lookup : LOOKUP, "apply", factory,
+                    MethodType.methodType(Object.class, Object.class), impl, MethodType.methodType(m.getReturnType(), VARS));
+            return (VarFunc) (receiver == null ? site.getTarget().invoke() : site.getTarget().invoke(receiver));
+        } catch (Throwable e) {
+            // not spinnable from here, the handle path works for everything
+            return null;
+        }
+    }
+
+    private static @NotNull Object instance(@NotNull Method m, @Nullable Object receiver) {
+        if (receiver == null) throw new IllegalArgumentException(m + " needs an instance to be bound");
+        return receiver;
+    }
+
+    // annotated methods of type and its superclasses, overridden ones only once
+    private static @NotNull List<Method> annotated(@NotNull Class<?> type, @NotNull Class<? extends Annotation> annotation) {
+        List<Method> out = new ArrayList<>();
+        if (type.isPrimitive() || type.isArray()) return out;
+        Set<String> seen = new HashSet<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Method m : c.getDeclaredMethods()) {
+                if (m.isBridge() || m.isSynthetic()) continue;
+                if (!seen.add(m.getName() + Arrays.toString(m.getParameterTypes()))) continue;
+                if (m.isAnnotationPresent(annotation)) out.add(m);
+            }
+        }
+        return out;
+    }
+
+    private static @NotNull MethodHandle converter(@NotNull Class<?> t, int index, @Nullable Opt opt, @NotNull Method m) {
+        boolean optional = opt != null;
+        String def = optional ? opt.value() : "";
+        try {
+            if (t == String.class) return bound("strArg", t, index, optional, def.isEmpty() ? null : def);
+            if (t == CharSequence.class) return bound("charsArg", t, index, optional, def.isEmpty() ? null : def);
+            if (t == Object.class) return bound("objArg", t, index, optional, def.isEmpty() ? null : def);
+            if (t == int.class) return bound("intArg", t, index, optional, def.isEmpty() ? 0 : Integer.parseInt(def));
+            if (t == long.class) return bound("longArg", t, index, optional, def.isEmpty() ? 0L : Long.parseLong(def));
+            if (t == float.class) return bound("floatArg", t, index, optional, def.isEmpty() ? 0f : Float.parseFloat(def));
+            if (t == double.class) return bound("doubleArg", t, index, optional, def.isEmpty() ? 0d : Double.parseDouble(def));
+            if (t == boolean.class) return bound("boolArg", t, index, optional, Boolean.parseBoolean(def));
+            if (t == UUID.class) return bound("uuidArg", t, index, optional, def.isEmpty() ? null : UUID.fromString(def));
+            if (t.isEnum()) {
+                Map<String, Enum<?>> names = new HashMap<>();
+                for (Object e : t.getEnumConstants()) {
+                    Enum<?> en = (Enum<?>) e;
+                    names.putIfAbsent(en.name().toLowerCase(Locale.ROOT), en);
+                    names.put(en.name(), en);
+                }
+                SymbolTable<Enum<?>> constants = new SymbolTable<>(names, 0);
+                Enum<?> d = def.isEmpty() ? null : constants.get(def);
+                if (!def.isEmpty() && d == null) throw new IllegalArgumentException("No constant " + def);
+                MethodHandle h = LOOKUP.findStatic(Binder.class, "enumArg",
+                        MethodType.methodType(Enum.class, VARS, int.class, boolean.class, Enum.class, SymbolTable.class));
+                return MethodHandles.insertArguments(h, 1, index, optional, d, constants).asType(MethodType.methodType(t, VARS));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Bad @Opt default \"" + def + "\" on " + m, e);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        throw new IllegalArgumentException("Unsupported parameter type " + t.getName() + " on " + m);
+    }
+
+    private static @NotNull MethodHandle bound(@NotNull String converter, @NotNull Class<?> type, int index, boolean optional, Object def)
+            throws ReflectiveOperationException {
+        MethodHandle h = LOOKUP.findStatic(Binder.class, converter, MethodType.methodType(type, VARS, int.class, boolean.class, type));
+        return MethodHandles.insertArguments(h, 1, index, optional, def);
+    }
+
+    // Converters, (vars, index, optional, default)
+
+    private static ArgumentException missing(int i) { return new ArgumentException(i, true); }
+    private static ArgumentException invalid(int i) { return new ArgumentException(i, false); }
+
+    static String strArg(Interpreter.VariableSet vars, int i, boolean opt, String def) {
+        if (!vars.has(i)) {
+            if (opt) return def;
+            throw missing(i);
+        }
+        Object v = vars.getS(i);
+        return v == null || v instanceof String ? (String) v : v.toString();
+    }
+    static CharSequence charsArg(Interpreter.VariableSet vars, int i, boolean opt, CharSequence def) {
+        if (!vars.has(i)) {
+            if (opt) return def;
+            throw missing(i);
+        }
+        Object v = vars.getS(i);
+        return v == null || v instanceof CharSequence ? (CharSequence) v : v.toString();
+    }
+    static Object objArg(Interpreter.VariableSet vars, int i, boolean opt, Object def) {
+        if (!vars.has(i)) {
+            if (opt) return def;
+            throw missing(i);
+        }
+        return vars.getS(i);
+    }
+    static int intArg(Interpreter.VariableSet vars, int i, boolean opt, int def) {
+        if (!vars.has(i)) {
+            if (opt) return def;
+            throw missing(i);
+        }
+        try {
+            return vars.getInt(i);
+        } catch (NumberFormatException e) {
+            throw invalid(i);
+        }
+    }
+    static long longArg(Interpreter.VariableSet vars, int i, boolean opt, long def) {
+        if (!vars.has(i)) {
+            if (opt) return def;
+            throw missing(i);
+        }
+        try {
+            return vars.getLong(i);
+        } catch (NumberFormatException e) {
+            throw invalid(i);
+        }
+    }
+    static float floatArg(Interpreter.VariableSet vars, int i, boolean opt, float def) {
+        if (!vars.has(i)) {
+            if (opt) return def;
+            throw missing(i);
+        }
+        try {
+            return vars.getFloat(i);
+        } catch (NumberFormatException e) {
+            throw invalid(i);
+        }
+    }
+    static double doubleArg(Interpreter.VariableSet vars, int i, boolean opt, double def) {
+        if (!vars.has(i)) {
+            if (opt) return def;
+            throw missing(i);
+        }
+        try {
+            return vars.getDouble(i);
+        } catch (NumberFormatException e) {
+            throw invalid(i);
+        }
+    }
+    static boolean boolArg(Interpreter.VariableSet vars, int i, boolean opt, boolean def) {
+        if (!vars.has(i)) {
+            if (opt) return def;
+            throw missing(i);
+        }
+        Object v = vars.getS(i);
+        if (v instanceof Boolean b) return b;
+        String s = Objects.toString(v);
+        if ("true".equalsIgnoreCase(s)) return true;
+        if ("false".equalsIgnoreCase(s)) return false;
+        throw invalid(i);
+    }
+    static UUID uuidArg(Interpreter.VariableSet vars, int i, boolean opt, UUID def) {
+        if (!vars.has(i)) {
+            if (opt) return def;
+            throw missing(i);
+        }
+        Object v = vars.getS(i);
+        if (v instanceof UUID uuid) return uuid;
+        try {
+            return UUID.fromString(Objects.toString(v));
+        } catch (IllegalArgumentException e) {
+            throw invalid(i);
+        }
+    }
+    // matches the constant's name, or its name in lower case
+    static Enum<?> enumArg(Interpreter.VariableSet vars, int i, boolean opt, Enum<?> def, SymbolTable<Enum<?>> constants) {
+        if (!vars.has(i)) {
+            if (opt) return def;
+            throw missing(i);
+        }
+        Object v = vars.getS(i);
+        if (v instanceof Enum<?> en && constants.get(en.name()) == en) return en;
+        Enum<?> e = v instanceof CharSequence s ? constants.get(s) : null;
+        if (e == null) throw invalid(i);
+        return e;
+    }
+}
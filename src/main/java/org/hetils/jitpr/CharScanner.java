@@ -0,0 +1,53 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+
+// Finds where a run of chars the Lexer only copies ends. With the Vector API in the JVM
+// (java --add-modules jdk.incubator.vector) a run that's still going after its first 16 or 32 chars is checked
+// that many chars a step, see VectorScanner, everything else one char at a time.
+final class CharScanner {
+    private CharScanner() {}
+
+    static final boolean VECTOR = vector();
+
+    private static boolean vector() {
+        // incubator modules are only there when asked for
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return false;
+        try {
+            return VectorScanner.LENGTH >= 8;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    // the first index from from on, to if there's none, of whitespace, a quote, a parenthesis or a backslash
+    static int plain(char @NotNull [] chars, int from, int to) {
+        if (!VECTOR) return scalarPlain(chars, from, to);
+        // most tokens are over before a vector would be full
+        int head = Math.min(to, from + VectorScanner.LENGTH);
+        int i = scalarPlain(chars, from, head);
+        return i < head ? i : VectorScanner.plain(chars, i, to);
+    }
+    // the first index from from on, to if there's none, of the closing quote or a backslash
+    static int quoted(char @NotNull [] chars, int from, int to, char quote) {
+        if (!VECTOR) return scalarQuoted(chars, from, to, quote);
+        int head = Math.min(to, from + VectorScanner.LENGTH);
+        int i = scalarQuoted(chars, from, head, quote);
+        return i < head ? i : VectorScanner.quoted(chars, i, to, quote);
+    }
+
+    static int scalarPlain(char @NotNull [] chars, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = chars[i];
+            if (c <= ' ' ? Lexer.isEmpty(c) : c == '\"' || c == '\'' || c == '(' || c == ')' || c == '\\') return i;
+        }
+        return to;
+    }
+    static int scalarQuoted(char @NotNull [] chars, int from, int to, char quote) {
+        for (int i = from; i < to; i++) {
+            char c = chars[i];
+            if (c == quote || c == '\\') return i;
+        }
+        return to;
+    }
+}
@@ -0,0 +1,17 @@
+package org.hetils.jitpr;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// A root command, see Interpreter.bind. On a method the method is the command, on a class its @Route methods are.
+// An empty name takes the method's name, or the class's simple name in lower case.
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface Command {
+    String value() default "";
+    boolean blocking() default false;
+    // see VarFunc.isPure
+    boolean pure() default false;
+}
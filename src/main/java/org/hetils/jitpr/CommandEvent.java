@@ -0,0 +1,21 @@
+package org.hetils.jitpr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("org.hetils.jitpr.Command")
+@Label("Command")
+@Category("Java Interpreter")
+@Description("A command or Mapper route run by the interpreter")
+@StackTrace(false)
+class CommandEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Error")
+    boolean error;
+}
@@ -0,0 +1,88 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Invocation counts, error counts and latencies per command and per Mapper route.
+// Commands are told apart by identity, a route's name is only built the first time it's seen.
+public class CommandMetrics {
+
+    public static class Stats {
+        private final String name;
+        private final LongAdder invocations = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        // routes below this one
+        private final ConcurrentHashMap<VarFunc, Stats> routes = new ConcurrentHashMap<>();
+        private Stats(String name) {
+            this.name = name;
+        }
+
+        public @NotNull String getName() { return name; }
+        public long getInvocations() { return invocations.sum(); }
+        public long getErrors() { return errors.sum(); }
+        public @NotNull LatencyHistogram getLatency() { return latency; }
+
+        void record(long nanos, boolean error) {
+            invocations.increment();
+            if (error) errors.increment();
+            latency.record(nanos);
+        }
+
+        private void reset() {
+            invocations.reset();
+            errors.reset();
+            latency.reset();
+            for (Stats s : routes.values()) s.reset();
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + getInvocations() + " calls, " + getErrors() + " errors, p50 "
+                    + latency.percentile(50) + "ns, p99 " + latency.percentile(99) + "ns, max " + latency.max() + "ns";
+        }
+    }
+
+    private final ConcurrentHashMap<VarFunc, Stats> commands = new ConcurrentHashMap<>();
+
+    @NotNull Stats root(@NotNull VarFunc func, @Nullable String name) {
+        Stats s = commands.get(func);
+        if (s == null) s = commands.computeIfAbsent(func, f -> new Stats(name != null ? name : f.getClass().getSimpleName()));
+        return s;
+    }
+    @NotNull Stats route(@NotNull Stats parent, @NotNull VarFunc func, @NotNull String route) {
+        Stats s = parent.routes.get(func);
+        if (s == null) s = parent.routes.computeIfAbsent(func, f -> new Stats(parent.name + " " + route));
+        return s;
+    }
+
+    public @Nullable Stats get(@NotNull String name) {
+        for (Stats s : all()) if (s.name.equals(name)) return s;
+        return null;
+    }
+
+    // every command and route, busiest first
+    public @NotNull List<Stats> all() {
+        List<Stats> out = new ArrayList<>();
+        collect(commands.values(), out);
+        out.sort(Comparator.comparingLong(Stats::getInvocations).reversed());
+        return out;
+    }
+    private static void collect(Collection<Stats> stats, List<Stats> out) {
+        for (Stats s : stats) {
+            out.add(s);
+            collect(s.routes.values(), out);
+        }
+    }
+
+    public void reset() {
+        for (Stats s : commands.values()) s.reset();
+    }
+}
@@ -0,0 +1,19 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+
+// A set of commands found through ServiceLoader (see Interpreter.loadModules), listed in
+// META-INF/services/org.hetils.jitpr.CommandModule. Modules are created when they're found, so keep construction
+// and commands() cheap: only the names are registered up front, the commands themselves are asked for the first
+// time they're needed, and that's where their classes should first be touched.
+public interface CommandModule extends MapperProvider {
+
+    // the root commands getMapper routes
+    @NotNull Collection<String> commands();
+
+    // one command on its own, for modules that can make them apart, null has getMapper make all of them at once
+    default @Nullable VarFunc command(@NotNull String name) { return null; }
+}
@@ -0,0 +1,568 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Serves an Interpreter over TCP or Unix domain sockets. One selector thread accepts, reads and writes every
+// connection and commands run on a worker pool. Requests on a connection may be pipelined, they run one after
+// the other in the connection's own Session and are answered in order. A connection isn't read while too many
+// of its requests are waiting or too much of its output is unread, so a slow reader only ever holds a bounded
+// amount of memory.
+public final class CommandServer implements Closeable {
+
+    public enum Framing {
+        // one request per line, a \n, \r or \ in a response is written escaped (\n, \r, \\)
+        LINE,
+        // a 4 byte big endian length and that many bytes of UTF-8, both ways
+        LENGTH
+    }
+
+    // responses are encoded into pooled direct chunks of this size
+    private static final int CHUNK = 8192;
+    private static final int MAX_POOLED = 256;
+    private static final int GATHER = 16;
+    // pipelined requests handed to a worker at once
+    private static final int BATCH = 64;
+
+    private final Interpreter interpreter;
+    private Framing framing = Framing.LINE;
+    private Executor workers;
+    private ExecutorService owned_workers;
+    private boolean sessions = true;
+    private int max_frame = 1 << 20;
+    private int max_pending = 1024;
+    private int max_output = 1 << 20;
+
+    private final Selector selector;
+    private final List<ServerSocketChannel> servers = new CopyOnWriteArrayList<>();
+    private final List<Path> socket_files = new CopyOnWriteArrayList<>();
+    private final Queue<ServerSocketChannel> to_register = new ConcurrentLinkedQueue<>();
+    // connections whose running request finished, handed from the workers to the selector thread
+    private final Queue<Connection> completed = new ConcurrentLinkedQueue<>();
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final ByteBuffer[] gather = new ByteBuffer[GATHER];
+    // per worker thread, the selector's own for answering a batch as busy
+    private final ThreadLocal<Frames> frames = ThreadLocal.withInitial(Frames::new);
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder requests = new LongAdder();
+    private volatile boolean running = false;
+    private Thread loop;
+
+    // everything but result is only touched by the selector thread
+    private final class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final Session session;
+        ByteBuffer in = ByteBuffer.allocate(CHUNK);
+        // how far the current line has been searched for a \n
+        int scanned = 0;
+        final ArrayDeque<String> pending = new ArrayDeque<>();
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        long out_bytes = 0;
+        boolean busy = false;
+        boolean eof = false;
+        volatile ByteBuffer[] result;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            this.session = sessions ? interpreter.newSession() : null;
+        }
+    }
+
+    public CommandServer(@NotNull Interpreter interpreter) {
+        this.interpreter = interpreter;
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Configuration, before start
+    public @NotNull CommandServer framing(@NotNull Framing framing) {
+        this.framing = framing;
+        return this;
+    }
+    public @NotNull CommandServer workers(@NotNull Executor executor) {
+        if (owned_workers != null) owned_workers.shutdown();
+        owned_workers = null;
+        this.workers = executor;
+        return this;
+    }
+    public @NotNull CommandServer workers(int threads) {
+        if (owned_workers != null) owned_workers.shutdown();
+        AtomicInteger n = new AtomicInteger();
+        this.owned_workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "jitpr-worker-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.workers = owned_workers;
+        return this;
+    }
+    // false runs every connection against the global variables
+    public @NotNull CommandServer sessionPerConnection(boolean value) {
+        this.sessions = value;
+        return this;
+    }
+    public @NotNull CommandServer maxFrame(int bytes) {
+        this.max_frame = bytes;
+        return this;
+    }
+    // requests waiting on a connection before it stops being read
+    public @NotNull CommandServer maxPending(int requests) {
+        this.max_pending = Math.max(requests, 1);
+        return this;
+    }
+    // unread output on a connection before it stops being read and its requests stop running
+    public @NotNull CommandServer maxBufferedOutput(int bytes) {
+        this.max_output = Math.max(bytes, 1);
+        return this;
+    }
+
+    // listens on a TCP (InetSocketAddress) or Unix domain (UnixDomainSocketAddress) address, returns the bound one
+    public @NotNull SocketAddress bind(@NotNull SocketAddress address) throws IOException {
+        boolean unix = address instanceof UnixDomainSocketAddress;
+        ServerSocketChannel server = unix ? ServerSocketChannel.open(StandardProtocolFamily.UNIX) : ServerSocketChannel.open();
+        try {
+            server.bind(address, 1024);
+            server.configureBlocking(false);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        if (unix) socket_files.add(((UnixDomainSocketAddress) address).getPath());
+        servers.add(server);
+        // registering blocks while the selector is selecting, the loop does it
+        to_register.add(server);
+        selector.wakeup();
+        return server.getLocalAddress();
+    }
+    public @NotNull SocketAddress bind(int port) throws IOException {
+        return bind(new InetSocketAddress("127.0.0.1", port));
+    }
+    public @NotNull SocketAddress bind(@NotNull Path socket_file) throws IOException {
+        return bind(UnixDomainSocketAddress.of(socket_file));
+    }
+
+    public synchronized @NotNull CommandServer start() {
+        if (running) return this;
+        if (workers == null) workers(Runtime.getRuntime().availableProcessors());
+        running = true;
+        loop = new Thread(this::run, "jitpr-server");
+        loop.start();
+        return this;
+    }
+
+    public int getConnectionCount() { return connections.get(); }
+    public long getRequestCount() { return requests.sum(); }
+    public boolean isRunning() { return running; }
+
+    @Override
+    public synchronized void close() {
+        if (!running) {
+            closeServers();
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        if (Thread.currentThread() != loop) {
+            try {
+                loop.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void closeServers() {
+        for (ServerSocketChannel s : servers) {
+            try {
+                s.close();
+            } catch (IOException ignored) {}
+        }
+        servers.clear();
+        for (Path p : socket_files) {
+            try {
+                Files.deleteIfExists(p);
+            } catch (IOException ignored) {}
+        }
+        socket_files.clear();
+        if (owned_workers != null) owned_workers.shutdown();
+    }
+
+    // Event loop
+
+    private void run() {
+        try {
+            while (running) {
+                ServerSocketChannel server;
+                while ((server = to_register.poll()) != null) {
+                    if (server.isOpen()) server.register(selector, SelectionKey.OP_ACCEPT);
+                }
+                selector.select();
+                Connection done;
+                while ((done = completed.poll()) != null) finished(done);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.attachment() == null) {
+                        accept((ServerSocketChannel) key.channel());
+                        continue;
+                    }
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) read(c);
+                        if (key.isValid() && key.isWritable()) write(c);
+                    } catch (IOException | CancelledKeyException e) {
+                        drop(c);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            running = false;
+            for (SelectionKey key : selector.keys())
+                if (key.attachment() instanceof Connection c) drop(c);
+            closeServers();
+            try {
+                selector.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void accept(@NotNull ServerSocketChannel server) {
+        SocketChannel channel;
+        try {
+            channel = server.accept();
+            if (channel == null) return;
+            channel.configureBlocking(false);
+            if (channel.getRemoteAddress() instanceof InetSocketAddress) channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+            connections.incrementAndGet();
+        } catch (IOException e) {
+            // the client is gone already, the server keeps going
+        }
+    }
+
+    private void read(@NotNull Connection c) throws IOException {
+        if (c.channel.read(c.in) < 0) {
+            c.eof = true;
+        } else if (!frames(c)) {
+            // unframeable input, nothing sensible to answer
+            drop(c);
+            return;
+        }
+        dispatch(c);
+        interest(c);
+    }
+
+    // splits off every complete request in c.in, false on a frame over max_frame
+    private boolean frames(@NotNull Connection c) {
+        ByteBuffer in = c.in;
+        byte[] bytes = in.array();
+        int start = 0, end = in.position();
+        if (framing == Framing.LINE) {
+            for (int i = c.scanned; i < end; i++) {
+                if (bytes[i] != '\n') continue;
+                int len = i - start;
+                if (len > 0 && bytes[i - 1] == '\r') len--;
+                request(c, new String(bytes, start, len, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        } else {
+            while (end - start >= 4) {
+                int len = ((bytes[start] & 0xff) << 24) | ((bytes[start + 1] & 0xff) << 16) | ((bytes[start + 2] & 0xff) << 8) | (bytes[start + 3] & 0xff);
+                if (len < 0 || len > max_frame) return false;
+                if (end - start - 4 < len) break;
+                request(c, new String(bytes, start + 4, len, StandardCharsets.UTF_8));
+                start += 4 + len;
+            }
+        }
+        int rest = end - start;
+        if (start > 0) {
+            System.arraycopy(bytes, start, bytes, 0, rest);
+            in.position(rest);
+        }
+        c.scanned = rest;
+        if (!in.hasRemaining()) {
+            int max = max_frame + (framing == Framing.LENGTH ? 4 : 2);
+            if (in.capacity() >= max) return false;
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() << 1, max));
+            in.flip();
+            bigger.put(in);
+            c.in = bigger;
+        }
+        return true;
+    }
+
+    private void request(@NotNull Connection c, @NotNull String input) {
+        requests.increment();
+        c.pending.add(input);
+    }
+
+    // hands the connection's waiting requests to a worker, unless some are already running or its output is backed up
+    private void dispatch(@NotNull Connection c) {
+        if (c.busy || c.pending.isEmpty() || c.out_bytes >= max_output || !c.channel.isOpen()) return;
+        c.busy = true;
+        String[] batch = new String[Math.min(c.pending.size(), BATCH)];
+        for (int i = 0; i < batch.length; i++) batch[i] = c.pending.poll();
+        try {
+            workers.execute(() -> execute(c, batch));
+        } catch (RejectedExecutionException e) {
+            Frames out = frames.get();
+            for (int i = 0; i < batch.length; i++) {
+                out.begin();
+                out.append("Server busy");
+                out.end();
+            }
+            c.result = out.finish();
+            finished(c);
+        }
+    }
+
+    // worker side, one batch at a time per connection so requests run and are answered in order
+    private void execute(@NotNull Connection c, String @NotNull [] batch) {
+        Frames out = frames.get();
+        try {
+            for (String req : batch) {
+                out.begin();
+                Result r;
+                try {
+                    r = c.session != null ? c.session.execute(req, out) : interpreter.execute(req, out);
+                } catch (Throwable t) {
+                    // execute only catches Exceptions, an Error (a StackOverflowError, say) costs this request alone
+                    r = Result.thrown(t);
+                }
+                if (r.getStatus() == Result.Status.EXCEPTION) out.append("Error: ").append(String.valueOf(r.getCause()));
+                out.end();
+            }
+        } finally {
+            // whatever happened, the connection goes back to the selector or it's never read again
+            c.result = out.finish();
+            completed.add(c);
+            selector.wakeup();
+        }
+    }
+
+    private void finished(@NotNull Connection c) {
+        ByteBuffer[] res = c.result;
+        c.result = null;
+        c.busy = false;
+        if (!c.channel.isOpen()) {
+            for (ByteBuffer b : res) release(b);
+            return;
+        }
+        for (ByteBuffer b : res) {
+            c.out.add(b);
+            c.out_bytes += b.remaining();
+        }
+        try {
+            write(c);
+        } catch (IOException | CancelledKeyException e) {
+            drop(c);
+        }
+    }
+
+    private void write(@NotNull Connection c) throws IOException {
+        while (!c.out.isEmpty()) {
+            int n = 0;
+            for (ByteBuffer b : c.out) {
+                gather[n++] = b;
+                if (n == GATHER) break;
+            }
+            long written = c.channel.write(gather, 0, n);
+            Arrays.fill(gather, 0, n, null);
+            c.out_bytes -= written;
+            int done = 0;
+            while (done < n && !c.out.peek().hasRemaining()) {
+                release(c.out.poll());
+                done++;
+            }
+            // the socket buffer is full, wait for OP_WRITE
+            if (done < n) break;
+        }
+        dispatch(c);
+        interest(c);
+    }
+
+    private void interest(@NotNull Connection c) {
+        if (!c.key.isValid()) return;
+        if (c.eof && !c.busy && c.pending.isEmpty() && c.out.isEmpty()) {
+            drop(c);
+            return;
+        }
+        int ops = 0;
+        if (!c.eof && c.pending.size() < max_pending && c.out_bytes < max_output) ops |= SelectionKey.OP_READ;
+        if (!c.out.isEmpty()) ops |= SelectionKey.OP_WRITE;
+        if (c.key.interestOps() != ops) c.key.interestOps(ops);
+    }
+
+    private void drop(@NotNull Connection c) {
+        if (!c.channel.isOpen()) return;
+        c.key.cancel();
+        try {
+            c.channel.close();
+        } catch (IOException ignored) {}
+        for (ByteBuffer b : c.out) release(b);
+        c.out.clear();
+        c.pending.clear();
+        connections.decrementAndGet();
+    }
+
+    // Buffers
+
+    private @NotNull ByteBuffer chunk() {
+        ByteBuffer b = pool.poll();
+        if (b == null) return ByteBuffer.allocateDirect(CHUNK);
+        pooled.decrementAndGet();
+        return b;
+    }
+    private void release(@NotNull ByteBuffer b) {
+        if (pooled.get() >= MAX_POOLED) return;
+        b.clear();
+        pooled.incrementAndGet();
+        pool.add(b);
+    }
+
+    // Responses encoded into chunks as they're written, framed back to back, so what a command writes (see
+    // VariableSet.out) is never a String first. A LENGTH frame's length is filled in once its response is done.
+    private final class Frames implements Appendable {
+        private final ArrayList<ByteBuffer> chunks = new ArrayList<>();
+        // bytes go here first and into the chunks a run at a time
+        private final byte[] bytes = new byte[1024];
+        private int n = 0;
+        // bytes in the chunks so far, and where the current frame starts
+        private int flushed = 0;
+        private int start;
+        // a high surrogate waiting for the char after it
+        private char high;
+
+        void begin() {
+            start = flushed + n;
+            if (framing == Framing.LENGTH) for (int k = 0; k < 4; k++) put((byte) 0);
+        }
+        void end() {
+            if (high != 0) {
+                high = 0;
+                put((byte) '?');
+            }
+            if (framing == Framing.LINE) {
+                put((byte) '\n');
+                return;
+            }
+            // the length may straddle two chunks, or not be in one yet
+            int length = flushed + n - start - 4;
+            for (int k = 0; k < 4; k++) {
+                int at = start + k;
+                byte v = (byte) (length >>> (24 - 8 * k));
+                if (at >= flushed) bytes[at - flushed] = v;
+                else chunks.get(at / CHUNK).put(at % CHUNK, v);
+            }
+        }
+        @NotNull ByteBuffer @NotNull [] finish() {
+            flush();
+            chunks.get(chunks.size() - 1).flip();
+            ByteBuffer[] out = chunks.toArray(new ByteBuffer[0]);
+            chunks.clear();
+            flushed = 0;
+            return out;
+        }
+
+        @Override
+        public @NotNull Frames append(CharSequence csq) {
+            return append(csq != null ? csq : "null", 0, csq != null ? csq.length() : 4);
+        }
+        @Override
+        public @NotNull Frames append(CharSequence csq, int from, int to) {
+            if (csq == null) csq = "null";
+            for (int i = from; i < to; i++) {
+                char c = csq.charAt(i);
+                // plain ASCII skips the checks
+                if (c < 0x80 && c != '\n' && c != '\r' && c != '\\' && high == 0 && n < bytes.length) bytes[n++] = (byte) c;
+                else append(c);
+            }
+            return this;
+        }
+        // UTF-8 as String.getBytes writes it, a lone surrogate is a ?
+        @Override
+        public @NotNull Frames append(char c) {
+            if (high != 0) {
+                int h = high;
+                high = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int cp = Character.toCodePoint((char) h, c);
+                    put((byte) (0xF0 | cp >> 18));
+                    put((byte) (0x80 | cp >> 12 & 0x3F));
+                    put((byte) (0x80 | cp >> 6 & 0x3F));
+                    put((byte) (0x80 | cp & 0x3F));
+                    return this;
+                }
+                put((byte) '?');
+            }
+            if (c < 0x80) {
+                if (framing == Framing.LINE && (c == '\n' || c == '\r' || c == '\\')) {
+                    put((byte) '\\');
+                    c = c == '\n' ? 'n' : c == '\r' ? 'r' : '\\';
+                }
+                put((byte) c);
+            }
+            else if (c < 0x800) {
+                put((byte) (0xC0 | c >> 6));
+                put((byte) (0x80 | c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c)) high = c;
+            else if (Character.isLowSurrogate(c)) put((byte) '?');
+            else {
+                put((byte) (0xE0 | c >> 12));
+                put((byte) (0x80 | c >> 6 & 0x3F));
+                put((byte) (0x80 | c & 0x3F));
+            }
+            return this;
+        }
+
+        private void put(byte b) {
+            if (n == bytes.length) flush();
+            bytes[n++] = b;
+        }
+        // every chunk but the last is full, so byte i of the batch is in chunk i / CHUNK
+        private void flush() {
+            int off = 0;
+            while (off < n) {
+                ByteBuffer b = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+                if (b == null || !b.hasRemaining()) {
+                    if (b != null) b.flip();
+                    chunks.add(b = chunk());
+                }
+                int k = Math.min(b.remaining(), n - off);
+                b.put(bytes, off, k);
+                off += k;
+            }
+            flushed += n;
+            n = 0;
+        }
+    }
+}
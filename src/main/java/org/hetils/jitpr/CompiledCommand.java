@@ -0,0 +1,152 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+public final class CompiledCommand {
+
+    // slot kinds, OBJECT slots are filled at run time by their nested command
+    static final byte OBJECT = 0;
+    static final byte STRING = 1;
+    static final byte LONG = 2;
+    static final byte DOUBLE = 3;
+    // run time only, a ( ) argument of a lazy command that hasn't been read yet
+    static final byte DEFERRED = 4;
+    // run time only, the stream a streaming stage of a | pipeline reads through input, not one of its arguments
+    static final byte PIPE = 5;
+
+    private static final int[] NO_INTS = new int[0];
+    private static final int[] NO_OFFSETS = new int[1];
+
+    final char[] chars;
+    final int start;
+    final int end;
+
+    // per command, in pre-order (0 is the root)
+    final int[] arg_counts;
+    // prefix sums of arg_counts, the slots of command c are offsets[c] until offsets[c + 1]
+    final int[] offsets;
+    final boolean[] single;
+    // the last slot of a piped command holds the output of the stage before it, which feeds it
+    final boolean[] piped;
+    final boolean[] feeds;
+    final String[] heads;
+    final VarFunc[] resolved;
+    // where each command's source starts and ends in chars, end exclusive, the text between a ( ) group's
+    // parentheses for a nested one, -1 for the stages before the last of a pipeline
+    final int[] spans;
+
+    // per slot, a literal (String or null) unless sub[slot] names the nested command filling it
+    final Object[] literals;
+    final int[] subs;
+    final byte[] kinds;
+    // LONG slots hold their value, DOUBLE slots their raw bits
+    final long[] numbers;
+    // per slot, the variable a $ literal names, interned once here so reading it is neither a substring nor a
+    // hash of a new string, and matches the stored name by identity
+    final String[] names;
+
+    final int slot_count;
+    final long registry_version;
+    final String error;
+    final int error_pos;
+
+    // second tier, counted racily, an extra run or two before compiling doesn't matter
+    int runs = 0;
+    volatile boolean tiered = false;
+    volatile TierCompiler.Tiered tier;
+
+    CompiledCommand(char[] chars, int start, int end,
+                    int[] arg_counts, int[] offsets,
+                    Object[] literals, int[] subs, byte[] kinds, long[] numbers, boolean[] single,
+                    boolean[] piped, boolean[] feeds, int[] spans, @NotNull SymbolTable<VarFunc> registry, long registry_version) {
+        this.chars = chars;
+        this.start = start;
+        this.end = end;
+        this.arg_counts = arg_counts;
+        this.offsets = offsets;
+        this.literals = literals;
+        this.subs = subs;
+        this.kinds = kinds;
+        this.numbers = numbers;
+        this.single = single;
+        this.piped = piped;
+        this.feeds = feeds;
+        this.spans = spans;
+        this.slot_count = offsets[offsets.length - 1];
+        this.registry_version = registry_version;
+        this.error = null;
+        this.error_pos = 0;
+
+        this.names = new String[literals.length];
+        for (int slot = 0; slot < literals.length; slot++)
+            if (subs[slot] < 0 && literals[slot] instanceof String s && s.startsWith("$")) names[slot] = s.substring(1).intern();
+
+        int n = arg_counts.length;
+        this.heads = new String[n];
+        this.resolved = new VarFunc[n];
+        for (int c = 0; c < n; c++) {
+            if (arg_counts[c] > 0 && subs[offsets[c]] < 0 && literals[offsets[c]] instanceof String s) {
+                heads[c] = s;
+                if (!s.startsWith("$")) resolved[c] = registry.get(s);
+            }
+        }
+    }
+
+    private CompiledCommand(char[] chars, int start, int end, String error, int error_pos, long registry_version) {
+        this.chars = chars;
+        this.start = start;
+        this.end = end;
+        this.arg_counts = NO_INTS;
+        this.offsets = NO_OFFSETS;
+        this.literals = new Object[0];
+        this.subs = NO_INTS;
+        this.kinds = new byte[0];
+        this.numbers = new long[0];
+        this.names = new String[0];
+        this.single = new boolean[0];
+        this.piped = new boolean[0];
+        this.feeds = new boolean[0];
+        this.spans = NO_INTS;
+        this.heads = new String[0];
+        this.resolved = new VarFunc[0];
+        this.slot_count = 0;
+        this.registry_version = registry_version;
+        this.error = error;
+        this.error_pos = error_pos;
+    }
+
+    static @NotNull CompiledCommand failed(char[] chars, int start, int end, String error, int error_pos, long registry_version) {
+        return new CompiledCommand(chars, start, end, error, error_pos, registry_version);
+    }
+
+    synchronized TierCompiler.Tiered promote() {
+        if (!tiered) {
+            tier = TierCompiler.compile(this);
+            tiered = true;
+        }
+        return tier;
+    }
+
+    public @NotNull String getSource() { return new String(chars, start, Math.max(end - start + 1, 0)); }
+    // null for a pipeline stage, only its whole pipeline has a source of its own
+    @Nullable String getSource(int command) {
+        int from = spans[command << 1];
+        return from < 0 ? null : new String(chars, from, spans[(command << 1) + 1] - from);
+    }
+    public int getCommandCount() { return arg_counts.length; }
+    public int getArgCount(int command) { return arg_counts[command]; }
+    public boolean isEmpty() { return arg_counts.length == 0 && error == null; }
+    public boolean hasError() { return error != null; }
+    public @Nullable String getError() { return error; }
+    public boolean isCompiled() { return tier != null; }
+
+    @Override
+    public String toString() {
+        return "CompiledCommand[" + getSource() + "]";
+    }
+
+    static @NotNull CompiledCommand compile(char @NotNull [] chars, int start, int end, @NotNull SymbolTable<VarFunc> commands) {
+        return new Lexer().lex(chars, start, end, commands);
+    }
+}
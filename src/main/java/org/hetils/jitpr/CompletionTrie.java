@@ -0,0 +1,77 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+// Immutable prefix trie over a sorted key array. Every node knows the range of keys below it, so a completion
+// query walks the prefix once and returns a view, without collecting anything.
+final class CompletionTrie {
+
+    final long version;
+    private final List<String> keys;
+    // per node, child chars in ascending order and the matching child nodes
+    private char[][] labels = new char[8][];
+    private int[][] next = new int[8][];
+    // keys below a node are keys[lo[node]] until keys[hi[node]]
+    private int[] lo = new int[8];
+    private int[] hi = new int[8];
+    private int nodes = 0;
+
+    CompletionTrie(@NotNull Collection<String> keys, long version) {
+        this.version = version;
+        String[] sorted = keys.stream().distinct().sorted().toArray(String[]::new);
+        this.keys = Collections.unmodifiableList(Arrays.asList(sorted));
+        build(sorted, 0, sorted.length, 0);
+    }
+
+    private int build(String[] sorted, int from, int to, int depth) {
+        int node = nodes++;
+        if (node == lo.length) {
+            int n = node << 1;
+            labels = Arrays.copyOf(labels, n);
+            next = Arrays.copyOf(next, n);
+            lo = Arrays.copyOf(lo, n);
+            hi = Arrays.copyOf(hi, n);
+        }
+        lo[node] = from;
+        hi[node] = to;
+        // keys ending here sort before the longer ones
+        int i = from;
+        while (i < to && sorted[i].length() == depth) i++;
+        char[] chars = new char[4];
+        int[] children = new int[4];
+        int n = 0;
+        while (i < to) {
+            char c = sorted[i].charAt(depth);
+            int j = i + 1;
+            while (j < to && sorted[j].charAt(depth) == c) j++;
+            if (n == chars.length) {
+                chars = Arrays.copyOf(chars, n << 1);
+                children = Arrays.copyOf(children, n << 1);
+            }
+            chars[n] = c;
+            children[n++] = build(sorted, i, j, depth + 1);
+            i = j;
+        }
+        labels[node] = Arrays.copyOf(chars, n);
+        next[node] = Arrays.copyOf(children, n);
+        return node;
+    }
+
+    // every key starting with prefix, in order
+    @NotNull List<String> complete(@NotNull CharSequence prefix) {
+        int node = 0;
+        for (int i = 0, len = prefix.length(); i < len; i++) {
+            int at = Arrays.binarySearch(labels[node], prefix.charAt(i));
+            if (at < 0) return Collections.emptyList();
+            node = next[node][at];
+        }
+        return keys.subList(lo[node], hi[node]);
+    }
+
+    int size() { return keys.size(); }
+}
@@ -0,0 +1,321 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+// Persistent hash array mapped trie from names to non null values. An update copies the path to the changed
+// entry, at most 7 small arrays, and shares everything else, so a trie once read never changes under its reader.
+// It may sit over the variables of a snapshot (see VariableJournal), what it holds shadows them.
+final class HashTrie implements Iterable<Map.Entry<String, Object>> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    // a variable of the base that's been removed
+    private static final Object REMOVED = new Object();
+
+    static final HashTrie EMPTY = new HashTrie(Bitmap.EMPTY, null);
+
+    private final Node root;
+    private final MappedVariables base;
+
+    private HashTrie(Node root, MappedVariables base) {
+        this.root = root;
+        this.base = base;
+    }
+    static @NotNull HashTrie over(@NotNull MappedVariables base) { return new HashTrie(Bitmap.EMPTY, base); }
+
+    // O(1) without a base, otherwise O(changes made since it was mapped)
+    int size() {
+        if (base == null) return root.size;
+        int n = base.size();
+        for (Walk w = new Walk(root); w.hasNext(); ) {
+            Map.Entry<String, Object> e = w.next();
+            if (e.getValue() == REMOVED) n--;
+            else if (!base.has(e.getKey())) n++;
+        }
+        return n;
+    }
+    boolean isEmpty() { return base == null ? root.size == 0 : size() == 0; }
+
+    @Nullable Object get(@NotNull String key) {
+        Object v = root.get(key, key.hashCode(), 0);
+        if (v == null) return base != null ? base.get(key) : null;
+        return v == REMOVED ? null : v;
+    }
+
+    // this if nothing changed
+    @NotNull HashTrie put(@NotNull String key, @NotNull Object value) {
+        Node r = root.put(key, key.hashCode(), value, 0);
+        return r == root ? this : new HashTrie(r, base);
+    }
+    @NotNull HashTrie remove(@NotNull String key) {
+        Node r = base != null && base.has(key)
+                ? root.put(key, key.hashCode(), REMOVED, 0)
+                : root.remove(key, key.hashCode(), 0);
+        return r == root ? this : new HashTrie(r, base);
+    }
+
+    @Override
+    public @NotNull Iterator<Map.Entry<String, Object>> iterator() {
+        if (base == null) return new Walk(root);
+        // the trie's own entries, then the base's it doesn't shadow
+        Iterator<Map.Entry<String, Object>> over = new Walk(root);
+        Iterator<Map.Entry<String, Object>> under = base.iterator();
+        return new Iterator<>() {
+            private Map.Entry<String, Object> next = advance();
+            private Map.Entry<String, Object> advance() {
+                while (over.hasNext()) {
+                    Map.Entry<String, Object> e = over.next();
+                    if (e.getValue() != REMOVED) return e;
+                }
+                while (under.hasNext()) {
+                    Map.Entry<String, Object> e = under.next();
+                    if (root.get(e.getKey(), e.getKey().hashCode(), 0) == null) return e;
+                }
+                return null;
+            }
+            @Override public boolean hasNext() { return next != null; }
+            @Override
+            public Map.Entry<String, Object> next() {
+                if (next == null) throw new NoSuchElementException();
+                Map.Entry<String, Object> e = next;
+                next = advance();
+                return e;
+            }
+        };
+    }
+
+    private static abstract class Node {
+        final int size;
+        Node(int size) { this.size = size; }
+        abstract Object get(String key, int hash, int shift);
+        abstract Node put(String key, int hash, Object value, int shift);
+        abstract Node remove(String key, int hash, int shift);
+    }
+
+    // entries and child nodes for the 32 branches of one level of the hash, content is k0, v0, k1, v1... for
+    // the entries in datamap bit order, then the children in reverse nodemap bit order
+    private static final class Bitmap extends Node {
+        static final Bitmap EMPTY = new Bitmap(0, 0, new Object[0], 0);
+
+        final int datamap;
+        final int nodemap;
+        final Object[] content;
+
+        Bitmap(int datamap, int nodemap, Object[] content, int size) {
+            super(size);
+            this.datamap = datamap;
+            this.nodemap = nodemap;
+            this.content = content;
+        }
+
+        private static int index(int map, int bit) { return Integer.bitCount(map & (bit - 1)); }
+        private int nodeAt(int bit) { return content.length - 1 - index(nodemap, bit); }
+
+        @Override
+        Object get(String key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((datamap & bit) != 0) {
+                int i = index(datamap, bit) << 1;
+                return key.equals(content[i]) ? content[i + 1] : null;
+            }
+            if ((nodemap & bit) != 0) return ((Node) content[nodeAt(bit)]).get(key, hash, shift + BITS);
+            return null;
+        }
+
+        @Override
+        Node put(String key, int hash, Object value, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((datamap & bit) != 0) {
+                int i = index(datamap, bit) << 1;
+                String k = (String) content[i];
+                if (key.equals(k)) {
+                    if (content[i + 1] == value) return this;
+                    Object[] c = content.clone();
+                    c[i + 1] = value;
+                    return new Bitmap(datamap, nodemap, c, size);
+                }
+                // both move a level down, the entry becomes a child
+                Node sub = merge(k, k.hashCode(), content[i + 1], key, hash, value, shift + BITS);
+                Object[] c = new Object[content.length - 1];
+                int at = c.length - 1 - index(nodemap, bit);
+                System.arraycopy(content, 0, c, 0, i);
+                System.arraycopy(content, i + 2, c, i, at - i);
+                c[at] = sub;
+                System.arraycopy(content, at + 2, c, at + 1, content.length - at - 2);
+                return new Bitmap(datamap ^ bit, nodemap | bit, c, size + 1);
+            }
+            if ((nodemap & bit) != 0) {
+                int at = nodeAt(bit);
+                Node old = (Node) content[at];
+                Node n = old.put(key, hash, value, shift + BITS);
+                if (n == old) return this;
+                Object[] c = content.clone();
+                c[at] = n;
+                return new Bitmap(datamap, nodemap, c, size + n.size - old.size);
+            }
+            int i = index(datamap, bit) << 1;
+            Object[] c = new Object[content.length + 2];
+            System.arraycopy(content, 0, c, 0, i);
+            c[i] = key;
+            c[i + 1] = value;
+            System.arraycopy(content, i, c, i + 2, content.length - i);
+            return new Bitmap(datamap | bit, nodemap, c, size + 1);
+        }
+
+        @Override
+        Node remove(String key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((datamap & bit) != 0) {
+                int i = index(datamap, bit) << 1;
+                if (!key.equals(content[i])) return this;
+                Object[] c = new Object[content.length - 2];
+                System.arraycopy(content, 0, c, 0, i);
+                System.arraycopy(content, i + 2, c, i, content.length - i - 2);
+                return new Bitmap(datamap ^ bit, nodemap, c, size - 1);
+            }
+            if ((nodemap & bit) != 0) {
+                int at = nodeAt(bit);
+                Node old = (Node) content[at];
+                Node n = old.remove(key, hash, shift + BITS);
+                if (n == old) return this;
+                if (n.size > 0) {
+                    Object[] c = content.clone();
+                    c[at] = n;
+                    return new Bitmap(datamap, nodemap, c, size - 1);
+                }
+                Object[] c = new Object[content.length - 1];
+                System.arraycopy(content, 0, c, 0, at);
+                System.arraycopy(content, at + 1, c, at, content.length - at - 1);
+                return new Bitmap(datamap, nodemap ^ bit, c, size - 1);
+            }
+            return this;
+        }
+    }
+
+    // names whose hashes are equal in all 32 bits
+    private static final class Collision extends Node {
+        final Object[] content;
+
+        Collision(Object[] content) {
+            super(content.length >> 1);
+            this.content = content;
+        }
+
+        private int find(String key) {
+            for (int i = 0; i < content.length; i += 2) if (key.equals(content[i])) return i;
+            return -1;
+        }
+
+        @Override
+        Object get(String key, int hash, int shift) {
+            int i = find(key);
+            return i < 0 ? null : content[i + 1];
+        }
+
+        @Override
+        Node put(String key, int hash, Object value, int shift) {
+            int i = find(key);
+            Object[] c;
+            if (i >= 0) {
+                if (content[i + 1] == value) return this;
+                c = content.clone();
+            } else {
+                i = content.length;
+                c = Arrays.copyOf(content, i + 2);
+                c[i] = key;
+            }
+            c[i + 1] = value;
+            return new Collision(c);
+        }
+
+        @Override
+        Node remove(String key, int hash, int shift) {
+            int i = find(key);
+            if (i < 0) return this;
+            Object[] c = new Object[content.length - 2];
+            System.arraycopy(content, 0, c, 0, i);
+            System.arraycopy(content, i + 2, c, i, content.length - i - 2);
+            return new Collision(c);
+        }
+
+        int entries() { return content.length >> 1; }
+        String key(int i) { return (String) content[i << 1]; }
+        Object value(int i) { return content[(i << 1) + 1]; }
+    }
+
+    private static Node merge(String k1, int h1, Object v1, String k2, int h2, Object v2, int shift) {
+        if (shift >= 32) return new Collision(new Object[] { k1, v1, k2, v2 });
+        int b1 = (h1 >>> shift) & MASK;
+        int b2 = (h2 >>> shift) & MASK;
+        if (b1 == b2) {
+            Node sub = merge(k1, h1, v1, k2, h2, v2, shift + BITS);
+            return new Bitmap(0, 1 << b1, new Object[] { sub }, 2);
+        }
+        Object[] c = b1 < b2 ? new Object[] { k1, v1, k2, v2 } : new Object[] { k2, v2, k1, v1 };
+        return new Bitmap((1 << b1) | (1 << b2), 0, c, 2);
+    }
+
+    // depth first over one version of the trie, branch 0 before branch 1 at every level
+    private static final class Walk implements Iterator<Map.Entry<String, Object>> {
+        // at most 7 levels of bitmaps and a collision
+        private final Node[] nodes = new Node[8];
+        // next branch, or entry of a collision, per level
+        private final int[] at = new int[8];
+        private int depth = 0;
+        private String key;
+        private Object value;
+
+        Walk(Node root) {
+            nodes[0] = root;
+            advance();
+        }
+
+        private void advance() {
+            key = null;
+            while (depth >= 0) {
+                Node n = nodes[depth];
+                int i = at[depth]++;
+                if (n instanceof Collision c) {
+                    if (i < c.entries()) {
+                        key = c.key(i);
+                        value = c.value(i);
+                        return;
+                    }
+                }
+                else if (i < 32) {
+                    Bitmap b = (Bitmap) n;
+                    int bit = 1 << i;
+                    if ((b.datamap & bit) != 0) {
+                        int e = Bitmap.index(b.datamap, bit) << 1;
+                        key = (String) b.content[e];
+                        value = b.content[e + 1];
+                        return;
+                    }
+                    if ((b.nodemap & bit) != 0) {
+                        nodes[++depth] = (Node) b.content[b.nodeAt(bit)];
+                        at[depth] = 0;
+                    }
+                    continue;
+                }
+                nodes[depth--] = null;
+            }
+        }
+
+        @Override
+        public boolean hasNext() { return key != null; }
+
+        @Override
+        public Map.Entry<String, Object> next() {
+            if (key == null) throw new NoSuchElementException();
+            Map.Entry<String, Object> e = Map.entry(key, value);
+            advance();
+            return e;
+        }
+    }
+}
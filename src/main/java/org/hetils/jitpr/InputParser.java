@@ -0,0 +1,241 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Lexer state kept between keystrokes. Each appended char moves the quote, escape and parenthesis state and the
+// words of the innermost command forward in O(1), and each step is recorded so it can be undone in O(1), so
+// validating a line as it's typed and completing the word under the cursor cost the same however long it gets.
+// Follows the Lexer's rules exactly, the finished line is compiled like any other input.
+public final class InputParser {
+
+    // EMPTY_PIPE_STAGE is a | with nothing between it and the | or ( before it, no more typing makes that compile
+    public enum Status { COMPLETE, OPEN_QUOTE, OPEN_PARENTHESES, TRAILING_ESCAPE, OPEN_PIPE, EMPTY_PIPE_STAGE }
+
+    private static final byte ESCAPE = 1;
+    // the current token has started, even if it's still empty ("")
+    private static final byte VAL = 2;
+
+    // finished words of a command, persistent so undoing is restoring a pointer, null text for anything that
+    // isn't a plain literal (a ( ) group)
+    private static final class Word {
+        final String text;
+        final Word prev;
+        final int count;
+        Word(String text, Word prev) {
+            this.text = text;
+            this.prev = prev;
+            this.count = prev == null ? 1 : prev.count + 1;
+        }
+    }
+    // an open command, or the pipeline stage of one being typed
+    private static final class Frame {
+        final Word words;
+        final Frame prev;
+        final int depth;
+        final int open_pos;
+        // of the outermost open parenthesis, the one an error points at
+        final int outer_pos;
+        // of the | this stage follows, until the stage has a word
+        final int pipe_pos;
+        Frame(Word words, Frame prev, int open_pos, int pipe_pos) {
+            this.words = words;
+            this.prev = prev;
+            this.depth = prev == null ? 0 : prev.depth + 1;
+            this.open_pos = open_pos;
+            this.outer_pos = prev == null || prev.prev == null ? open_pos : prev.outer_pos;
+            this.pipe_pos = pipe_pos;
+        }
+        Frame with(Word words) { return new Frame(words, prev, open_pos, 0); }
+        Frame stage(int pipe_pos) { return new Frame(null, prev, open_pos, pipe_pos); }
+    }
+
+    private final Interpreter interpreter;
+    private char[] buf = new char[64];
+    private int n = 0;
+    // state after the first i chars, at index i
+    private char[] quotes = new char[65];
+    private int[] quote_pos = new int[65];
+    private byte[] flags = new byte[65];
+    private int[] token_len = new int[65];
+    private Frame[] frames = new Frame[65];
+    // where the first empty pipe stage was found, 0 until there is one, the Lexer fails on the first it finds
+    private int[] errors = new int[65];
+    // the token char i - 1 finished, to restore when it's taken back
+    private String[] ended = new String[65];
+    // unescaped text of the current token
+    private final StringBuilder token = new StringBuilder();
+
+    public InputParser(@NotNull Interpreter interpreter) {
+        this.interpreter = interpreter;
+        frames[0] = new Frame(null, null, 0, 0);
+    }
+
+    private void grow() {
+        int cap = buf.length << 1;
+        buf = Arrays.copyOf(buf, cap);
+        quotes = Arrays.copyOf(quotes, cap + 1);
+        quote_pos = Arrays.copyOf(quote_pos, cap + 1);
+        flags = Arrays.copyOf(flags, cap + 1);
+        token_len = Arrays.copyOf(token_len, cap + 1);
+        frames = Arrays.copyOf(frames, cap + 1);
+        errors = Arrays.copyOf(errors, cap + 1);
+        ended = Arrays.copyOf(ended, cap + 1);
+    }
+
+    public @NotNull InputParser append(char c) {
+        if (n == buf.length) grow();
+        char quote = quotes[n];
+        int q_pos = quote_pos[n];
+        byte f = flags[n];
+        Frame frame = frames[n];
+        int error = errors[n];
+        String done = null;
+        buf[n] = c;
+
+        if ((f & ESCAPE) != 0) {
+            token.append(c);
+            f = VAL;
+        }
+        else if (c == '\\') f |= ESCAPE;
+        else if (quote != 0) {
+            if (c == quote) {
+                quote = 0;
+                done = token.toString();
+                frame = frame.with(new Word(done, frame.words));
+            } else token.append(c);
+        }
+        else if (c == '\"' || c == '\'') {
+            quote = c;
+            q_pos = n + 1;
+            f |= VAL;
+        }
+        else if (c == '(') {
+            if ((f & VAL) != 0) {
+                done = token.toString();
+                frame = frame.with(new Word(done, frame.words));
+            }
+            frame = new Frame(null, frame, n + 1, 0);
+        }
+        else if (c == ')' && frame.prev != null) {
+            if (error == 0 && frame.pipe_pos != 0 && frame.words == null && (f & VAL) == 0) error = frame.pipe_pos;
+            // a token still open belongs to the group, which is done with
+            if ((f & VAL) != 0) done = token.toString();
+            // the group is a single argument of its parent, whatever it evaluates to
+            frame = frame.prev.with(new Word(null, frame.prev.words));
+        }
+        // a new stage, completed from its command name on like a new command
+        else if (c == '|' && (f & VAL) == 0) {
+            // nothing before it in its command or since the last |
+            if (error == 0 && frame.words == null) error = n + 1;
+            frame = frame.stage(n + 1);
+        }
+        else if (Lexer.isEmpty(c)) {
+            if ((f & VAL) != 0) {
+                done = token.toString();
+                frame = frame.with(new Word(done, frame.words));
+            }
+        }
+        else {
+            token.append(c);
+            f |= VAL;
+        }
+
+        if (done != null) {
+            token.setLength(0);
+            f &= ~VAL;
+        }
+        n++;
+        quotes[n] = quote;
+        quote_pos[n] = q_pos;
+        flags[n] = f;
+        token_len[n] = token.length();
+        frames[n] = frame;
+        errors[n] = error;
+        ended[n] = done;
+        return this;
+    }
+    public @NotNull InputParser append(@NotNull CharSequence s) {
+        for (int i = 0, len = s.length(); i < len; i++) append(s.charAt(i));
+        return this;
+    }
+    public @NotNull InputParser append(char @NotNull [] chars, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) append(chars[i]);
+        return this;
+    }
+
+    // takes back the last char, false if there was none
+    public boolean backspace() {
+        if (n == 0) return false;
+        String done = ended[n];
+        ended[n] = null;
+        frames[n] = null;
+        n--;
+        token.setLength(done != null ? 0 : token_len[n]);
+        if (done != null) token.append(done);
+        return true;
+    }
+    public void truncate(int length) {
+        while (n > Math.max(length, 0)) backspace();
+    }
+    public void clear() { truncate(0); }
+
+    public int length() { return n; }
+    public boolean isEmpty() { return n == 0; }
+
+    public @NotNull Status status() {
+        if (errors[n] != 0) return Status.EMPTY_PIPE_STAGE;
+        if ((flags[n] & ESCAPE) != 0) return Status.TRAILING_ESCAPE;
+        if (quotes[n] != 0) return Status.OPEN_QUOTE;
+        if (frames[n].prev != null) return Status.OPEN_PARENTHESES;
+        if (frames[n].pipe_pos != 0 && (flags[n] & VAL) == 0) return Status.OPEN_PIPE;
+        return Status.COMPLETE;
+    }
+    public boolean isComplete() { return status() == Status.COMPLETE; }
+    public int getDepth() { return frames[n].depth; }
+    // 1 based, as in syntax errors, 0 if nothing is open
+    public int getErrorPos() {
+        return switch (status()) {
+            case OPEN_QUOTE -> quote_pos[n];
+            case OPEN_PARENTHESES -> frames[n].outer_pos;
+            case OPEN_PIPE -> frames[n].pipe_pos;
+            case EMPTY_PIPE_STAGE -> errors[n];
+            default -> 0;
+        };
+    }
+
+    // the word being typed, unescaped, empty right after a separator
+    public @NotNull String getToken() { return token.toString(); }
+
+    // Completion candidates for the word being typed: command names at the start of a command, otherwise the
+    // routes of the Mapper the command's earlier words lead to. Only follows commands registered as mappers
+    // (Mapper.asCommand, rootCommand with a Mapper or map, bound @Command classes), nothing is run to find out.
+    public @NotNull List<String> complete() {
+        if ((flags[n] & ESCAPE) != 0) return Collections.emptyList();
+        Word words = frames[n].words;
+        if (words == null) return interpreter.complete(token);
+        String[] path = new String[words.count];
+        for (Word w = words; w != null; w = w.prev) {
+            // ( ) groups and $ variables are only known at run time
+            if (w.text == null || w.text.startsWith("$")) return Collections.emptyList();
+            path[w.count - 1] = w.text;
+        }
+        Mapper mapper = mapperOf(interpreter.getCommand(path[0]));
+        for (int i = 1; i < path.length && mapper != null; i++) mapper = mapperOf(mapper.get(path[i]));
+        return mapper == null ? Collections.emptyList() : mapper.complete(token);
+    }
+    private static @Nullable Mapper mapperOf(@Nullable VarFunc func) {
+        return func instanceof MapperProvider mp ? mp.getMapper() : null;
+    }
+
+    public @NotNull CompiledCommand compile() { return interpreter.compile(toString()); }
+    public @NotNull String process() { return interpreter.process(compile()); }
+    public @Nullable Object handle() { return interpreter.handle(compile()); }
+
+    @Override
+    public String toString() { return new String(buf, 0, n); }
+}
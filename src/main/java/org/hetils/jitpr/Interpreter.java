@@ -4,221 +4,260 @@ import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 
 public class Interpreter {
 
     public static final String VERSION = "0.7.21";
 
-    private static boolean isEmpty(char c) { return c == ' ' || c == '\t' || c == '\r' || c == '\n'; }
-    private static boolean isEmpty(char @NotNull [] chars, int start, int end) {
-        for (int i = start; i <= end; i++) {
-            char c = chars[i];
-            if (!isEmpty(c)) return false;
-        }
-        return true;
-    }
-    
-    @Contract(pure = true)
-    private static int functionCount(char @NotNull [] chars, int start, int end) {
-        int param_count = 0;
-
-        //trim ends
-        while (start < end && isEmpty(chars[start])) start++;
-        while (end > start && isEmpty(chars[end])) end--;
-
-        int i = start;
-        int next_start = start;
-        boolean dq = true;
-        boolean sq = true;
-        while (i <= end) {
-            char c = chars[i];
-
-            if (c == '\"') dq = !dq;
-            else if (c == '\'') sq = !sq;
-
-            if (dq && sq) {
-                if (c == '(') {
-                    next_start = ++i;
-                    int depth = 0;
-                    while (i <= end) {
-                        if (chars[i] == '(') depth++;
-                        else if (chars[i] == ')') {
-                            if (depth == 0) {
-                                break;
-                            }
-                            depth--;
-                        }
-                        i++;
-                    }
-
-                    int res = functionCount(chars, next_start, i-1);
-                    param_count += res;
-
-                    do i++;
-                    while (i <= end && chars[i] == ' ');
-
-                    param_count++;
-                }
-                else i++;
-            }
-            else i++;
-        }
-
-        return param_count;
-    }
-
-    private static class IntArr {
-        final int[] data;
-        int i = 0;
-        public IntArr(int size) {
-            this.data = new int[size];
-        }
-        public void set(int indx, int num) { data[indx] = num; }
-    }
-    private static void countParamPerFunc(char[] chars, int start, int end, @NotNull IntArr arr) {
-        int param_count = 0;
-
-        //trim ends
-        while (start < end && isEmpty(chars[start])) start++;
-        while (end > start && isEmpty(chars[end])) end--;
-
-        int indx = arr.i++;
-
-        int i = start;
-        int next_start = start;
-        boolean val = false;
-        boolean dq = true;
-        boolean sq = true;
-        while (i <= end) {
-            char c = chars[i];
-
-            if (c == '\\') {
-                i += 2;
-                val = true;
-                continue;
-            }
-
-            if (c == '\"') {
-                dq = !dq;
-                val = true;
-            }
-            else if (c == '\'') {
-                sq = !sq;
-                val = true;
-            }
-
-            if (dq && sq) {
-                if (c == '(') {
-                    next_start = ++i;
-                    int depth = 0;
-                    while (i <= end) {
-                        if (chars[i] == '(') depth++;
-                        else if (chars[i] == ')') {
-                            if (depth == 0) {
-                                break;
-                            }
-                            depth--;
-                        }
-                        i++;
-                    }
-
-                    countParamPerFunc(chars, next_start, i-1, arr);
-
-                    do i++;
-                    while (i <= end && chars[i] == ' ');
-
-                    param_count++;
-                }
-                else if (isEmpty(c) || c == '\"' || c == '\'') {
-                    if (val) {
-                        param_count++;
-                        val = false;
-                    }
-                    i++;
-                }
-                else {
-                    val = true;
-                    i++;
-                }
-            }
-            else i++;
-        }
-
-        if (val) param_count++;
-
-        arr.set(indx, param_count);
-    }
-
-    @Contract(pure = true)
-    private static int sum(int @NotNull [] arr, int count) {
-        int s = 0;
-        for (int i = 0; i < count; i++) {
-            s += arr[i];
-        }
-        return s;
-    }
-
-
     private boolean always_treat_singles_as_cmds = true;
     private boolean always_set_last_output = false;
     private String last_output_var_name = "~";
     private int unqe_margin = 10;
-
+    private boolean parallel_subcommands = false;
+    private boolean lazy_subcommands = false;
+    // runs of a plan before it's compiled to bytecode, 0 keeps everything interpreted
+    private int compile_threshold = 1000;
+    // null while disabled, so the only cost then is this one read
+    private volatile CommandMetrics metrics = null;
+    private boolean pool_contexts = true;
+    private int max_nesting_depth = 1 << 16;
+    private int max_macro_depth = 256;
+    private Executor executor = Schedulers.virtualThreads() ? Schedulers.blocking() : Schedulers.cpu();
+    private Executor cpu_executor = Schedulers.cpu();
+    private Executor blocking_executor = Schedulers.blocking();
+
+    // read-mostly, dispatch never locks
     private final Map<String, VarFunc> commands;
-    private final Map<String, Object> global_variables = new HashMap<>();
-    public Interpreter() { this(new HashMap<>(), true); }
+    private final VariableScope global_variables = new VariableScope();
+    private final PlanCache plans = new PlanCache(512);
+    private final ResultCache results = new ResultCache(1024);
+    private final AtomicLong registry_version = new AtomicLong();
+    private final Registry registry = new Registry();
+    // snapshot of commands for allocation free lookups, rebuilt lazily after the registry changes
+    private volatile SymbolTable<VarFunc> command_table = SymbolTable.empty();
+    private volatile CompletionTrie command_trie;
+    // execution state every thread reuses from one run to the next, see poolContexts
+    private final ThreadLocal<Contexts> contexts = ThreadLocal.withInitial(Contexts::new);
+    public Interpreter() { this(new ConcurrentHashMap<>(), true); }
+    // Starts with a copy of commands, later changes to the map aren't seen. Register more with rootCommand, or
+    // through getCommands(), and read the basic commands from there too, they're never put into the given map.
     public Interpreter(Map<String, VarFunc> commands) { this(commands, true); }
     public Interpreter(Map<String, VarFunc> commands, boolean add_basic_commands) {
-        this.commands = commands;
+        this.commands = new ConcurrentHashMap<>(commands);
         if (add_basic_commands) addBasicCommands();
     }
 
     public void alwaysTreatSinglesAsCommands(boolean value) { this.always_treat_singles_as_cmds = value; }
-    public void setLastOutputVarName(String name) { this.last_output_var_name = name; }
+    // interned like the names of $ literals, so it's found by identity
+    public void setLastOutputVarName(String name) { this.last_output_var_name = name.intern(); }
     public void alwaysSetLastOutput(boolean val) { this.always_set_last_output = val; }
     public void unresolvedQuoteErrorMargin(int margin) { this.unqe_margin = margin; }
+    public void planCacheSize(int size) { plans.setMaxSize(size); }
+    // results of pure commands kept for reuse, 0 disables
+    public void resultCacheSize(int size) { results.setMaxSize(size); }
+    // 0 keeps results until they're evicted
+    public void resultCacheTtl(long ttl, @NotNull TimeUnit unit) { results.setTtlNanos(unit.toNanos(ttl)); }
+    // evaluate sibling ( ) arguments of a command concurrently, only for subcommands without shared side effects
+    public void parallelSubcommands(boolean value) { this.parallel_subcommands = value; }
+    // pass ( ) arguments to every command unevaluated, each one runs the first time it's read and keeps its result
+    // (commands made with VarFunc.lazy always get them this way)
+    public void lazySubcommands(boolean value) { this.lazy_subcommands = value; }
+    public void compileThreshold(int runs) { this.compile_threshold = Math.max(runs, 0); }
+    // reuse the VariableSet of a finished run for the next one on the same thread, instead of allocating one per run
+    // (a command must then not hold on to its VariableSet, or to a message Supplier reading it, once it's returned)
+    public void poolContexts(boolean value) { this.pool_contexts = value; }
+    // ( ) levels a command may be nested in before it fails, evaluating them takes heap, not thread stack
+    public void maxNestingDepth(int depth) { this.max_nesting_depth = Math.max(depth, 1); }
+    // macros running inside macros before the innermost fails, each level is a Java call (see defineMacro)
+    public void maxMacroDepth(int depth) { this.max_macro_depth = Math.max(depth, 1); }
+    public void setExecutor(@NotNull Executor executor) { this.executor = executor; }
+    public void collectMetrics(boolean value) {
+        if (!value) metrics = null;
+        else if (metrics == null) metrics = new CommandMetrics();
+    }
+    public @Nullable CommandMetrics getMetrics() { return metrics; }
+    public void setCpuExecutor(@NotNull Executor executor) { this.cpu_executor = executor; }
+    public void setBlockingExecutor(@NotNull Executor executor) { this.blocking_executor = executor; }
 
     public class VariableSet {
-        private final int[] cmd_var_counts;
-        private final Object[] vars;
-        private int global_cmd_index = 0;
+        private VariableScope scope;
+        private CompiledCommand plan;
+        private int[] cmd_var_counts;
+        // prefix sums of cmd_var_counts
+        private int[] offsets;
+        // as long as the plan's slots, or longer in a pooled set
+        private Object[] vars;
+        // per slot, OBJECT once vars holds the value, otherwise the literal's kind in the plan
+        private byte[] tags;
         private int c_cmd = 0;
         private int local_offset = 0;
         private boolean error = false;
-        private String msg;
+        // a String, or a Supplier of one that's only called if the message is read
+        private Object msg;
+        // set with error by failures the interpreter finds itself, a command's own are ERROR
+        private Result.Status error_status;
+        private int error_pos;
         private int consumed = 0;
-        private VariableSet(char @NotNull [] command) {
-            this(command, 0, command.length - 1);
+        private Object failure;
+        // whether deferred arguments can use the plan's resolutions
+        private boolean resolved;
+        // the session running this, if any
+        private Session session;
+        // the pool it goes back to when the run is over, null if it isn't pooled
+        private Contexts pool;
+        // commands waiting on a ( ) argument, their index, the slot and their flags each (see evaluation)
+        private int[] frames = NO_FRAMES;
+        private int depth = 0;
+        // for a set running a forked ( ) argument, the levels its parents are nested in, and how many of those forked
+        private int outer = 0;
+        private int forks = 0;
+        // how many macros this runs inside of
+        private int expansions = 0;
+        // the caller's Appendable when the run was given one, and whether the command at the top wrote to it
+        private Output sink;
+        private boolean written = false;
+        private VariableSet(@NotNull CompiledCommand plan, @NotNull VariableScope scope) {
+            this.scope = scope;
+            this.plan = plan;
+            this.cmd_var_counts = plan.arg_counts;
+            this.offsets = plan.offsets;
+            this.vars = new Object[plan.slot_count];
+            this.tags = plan.kinds.clone();
         }
-        private VariableSet(char @NotNull [] command, int start, int end) {
-            int fc = functionCount(command, start, end) + 1;
-            IntArr arr = new IntArr(fc);
-            countParamPerFunc(command, start, end, arr);
-            cmd_var_counts = arr.data;
-            this.vars = new Object[sum(cmd_var_counts, cmd_var_counts.length)];
+        // same slots, own cursor, for evaluating a subcommand on another thread
+        private VariableSet(@NotNull VariableSet parent) {
+            this.scope = parent.scope;
+            this.plan = parent.plan;
+            this.cmd_var_counts = parent.cmd_var_counts;
+            this.offsets = parent.offsets;
+            this.vars = parent.vars;
+            this.tags = parent.tags;
+            this.resolved = parent.resolved;
+            this.session = parent.session;
+            this.expansions = parent.expansions;
         }
 
-        private int next() {
-            global_cmd_index++;
-            return global_cmd_index-1;
+        // points a pooled set at its next run, the arrays are only replaced when the plan has more slots
+        private void reset(@NotNull CompiledCommand plan, @NotNull VariableScope scope, @Nullable Session session) {
+            int n = plan.slot_count;
+            if (vars.length < n) {
+                vars = new Object[n];
+                tags = new byte[n];
+            }
+            System.arraycopy(plan.kinds, 0, tags, 0, n);
+            this.scope = scope;
+            this.plan = plan;
+            this.cmd_var_counts = plan.arg_counts;
+            this.offsets = plan.offsets;
+            this.session = session;
+        }
+        // lets go of everything the run referenced and winds the cursor back
+        private void clear() {
+            Arrays.fill(vars, 0, plan.slot_count, null);
+            scope = null;
+            plan = null;
+            session = null;
+            c_cmd = 0;
+            local_offset = 0;
+            error = false;
+            msg = null;
+            error_status = null;
+            error_pos = 0;
+            consumed = 0;
+            failure = null;
+            resolved = false;
+            depth = 0;
+            outer = 0;
+            forks = 0;
+            expansions = 0;
+            sink = null;
+            written = false;
+        }
+
+        private void push(int cmd_index, int slot, int flags) {
+            int i = depth * 3;
+            if (i == frames.length) frames = Arrays.copyOf(frames, Math.max(i << 1, 24));
+            frames[i] = cmd_index;
+            frames[i + 1] = slot;
+            frames[i + 2] = flags;
+            depth++;
         }
 
         private void set(int cmd_index, int offset, Object val) {
-            vars[sum(cmd_var_counts, cmd_index) + offset] = val;
+            setSlot(offsets[cmd_index] + offset, val);
+        }
+        private void setSlot(int slot, Object val) {
+            vars[slot] = val;
+            tags[slot] = CompiledCommand.OBJECT;
+        }
+        // literals are only copied over once someone asks for them as an Object
+        private Object slot(int slot) {
+            byte tag = tags[slot];
+            if (tag != CompiledCommand.OBJECT && tag != CompiledCommand.PIPE) {
+                if (tag == CompiledCommand.DEFERRED) return force(slot);
+                vars[slot] = plan.literals[slot];
+                tags[slot] = CompiledCommand.OBJECT;
+            }
+            return vars[slot];
+        }
+
+        // the output of the stage before a streaming one, left as it is for input
+        private void pipe(int slot, Object stream) {
+            vars[slot] = stream;
+            tags[slot] = CompiledCommand.PIPE;
+        }
+        // end of the current command's arguments, a pipe a streaming stage reads isn't one
+        private int end() {
+            int e = offsets[c_cmd + 1];
+            return plan.piped[c_cmd] && tags[e - 1] == CompiledCommand.PIPE ? e - 1 : e;
+        }
+
+        private void defer(int slot) {
+            tags[slot] = CompiledCommand.DEFERRED;
+        }
+        private boolean isDeferred(int index) {
+            return tags[hlocI(index)] == CompiledCommand.DEFERRED;
+        }
+        // runs a deferred ( ) argument in the middle of its command, which carries on where it was
+        private Object force(int slot) {
+            int cmd = c_cmd, offset = local_offset, used = consumed;
+            Object had_msg = msg;
+            Object obj = handle(plan, plan.subs[slot], this, resolved);
+            // the reading command fails with its argument, same as if it had been evaluated up front
+            if (error) throw new DeferredFailure(obj);
+            msg = had_msg;
+            c_cmd = cmd;
+            local_offset = offset;
+            consumed = used;
+            // substituted on arrival, the $ pass over the command's arguments skips what isn't there yet
+            if (obj instanceof String varn && varn.startsWith("$")) obj = scope.get(varn.substring(1));
+            setSlot(slot, obj);
+            return obj;
         }
 
         private VariableSet withLocalOffset(int cmd_index, int offset) {
-            this.local_offset = sum(cmd_var_counts, cmd_index) + offset;
+            this.local_offset = offsets[cmd_index] + offset;
             this.c_cmd = cmd_index;
             return this;
         }
 
         private void currentCommand(int command) {
-            this.local_offset = sum(cmd_var_counts, command);
+            this.local_offset = offsets[command];
             this.c_cmd = command;
             this.consumed = 0;
         }
@@ -228,109 +267,199 @@ public class Interpreter {
         }
 
         private int hlocI(int index) { return index+local_offset; }
+        // the variable a $ argument names, precomputed when it's a literal of the plan
+        private String varName(int index, String varn) {
+            int slot = hlocI(index);
+            return varn == plan.literals[slot] ? plan.names[slot] : varn.substring(1);
+        }
         private int locI(int index) {
             consumed = Math.max(index+1, consumed);
             return index+local_offset;
         }
 
         private @Nullable Object trySetLast(Object ctx) {
-            if (c_cmd == 0 || always_set_last_output) global_variables.put(last_output_var_name, ctx);
+            // a stream is read out by the command that made it, unless it goes on down a pipe
+            if (plan.feeds[c_cmd]) return ctx;
+            ctx = StreamFunc.collect(ctx);
+            // a macro's output is the output of the command calling it
+            if ((c_cmd == 0 && expansions == 0) || always_set_last_output) scope.set(last_output_var_name, ctx);
             return ctx;
         }
 
+        // entry points for tiered plans (see TierCompiler), together they do what handle does for a resolved command
+        VariableSet enter(int cmd_index) {
+            currentCommand(cmd_index);
+            // literals never start with $ in a tiered plan, only subcommand results can
+            for (int slot = offsets[cmd_index] + 1, to = offsets[cmd_index + 1]; slot < to; slot++)
+                if (tags[slot] == CompiledCommand.OBJECT && vars[slot] instanceof String varn && varn.startsWith("$"))
+                    vars[slot] = scope.get(varn.substring(1));
+            return withLocalOffset(cmd_index, 1);
+        }
+        @Nullable Object finish(Object ctx, int cmd_index) {
+            int k = 1 + consumed;
+            consumed = 0;
+            return dispatch(ctx, k, cmd_var_counts[cmd_index], cmd_index, plan.heads[cmd_index], this, null, null);
+        }
+        // true if the subcommand failed and the plan should stop
+        boolean deliver(Object obj, int slot) {
+            if (error) {
+                failure = obj;
+                return true;
+            }
+            msg = null;
+            setSlot(slot, obj);
+            return false;
+        }
+        Object failure() { return failure; }
+
+        Object call(@NotNull VarFunc vf) {
+            return vf.isPure() && results.enabled() ? memoized(vf) : vf.apply(this);
+        }
+        // a pure function sees nothing but the rest of its command, so that's the key
+        private Object memoized(@NotNull VarFunc vf) {
+            int from = local_offset, to = end();
+            // a ( ) argument it may never read isn't run to make a key, the call just isn't cached
+            for (int i = from; i < to; i++) if (tags[i] == CompiledCommand.DEFERRED) return vf.apply(this);
+            Object[] args = new Object[Math.max(to - from, 0)];
+            for (int i = from; i < to; i++) args[i - from] = slot(i);
+            ResultCache.Key key = new ResultCache.Key(plan.heads[c_cmd], vf, args);
+            ResultCache.Result r = results.get(key);
+            if (r != null) {
+                consumed = r.consumed;
+                if (r.msg_set) msg = r.msg;
+                if (r.error) error = true;
+                return r.value;
+            }
+            Object had_msg = msg;
+            boolean had_error = error;
+            boolean had_written = written;
+            Object value = vf.apply(this);
+            // a stream can only be read once, and what went straight to the caller isn't in the value
+            if (!StreamFunc.isStream(value) && written == had_written) results.put(key, value, consumed, msg != had_msg, msg, error && !had_error);
+            return value;
+        }
+
         public int length() {
-            return Math.max(sum(cmd_var_counts, c_cmd) + cmd_var_counts[c_cmd] - local_offset, 0);
+            return Math.max(end() - local_offset, 0);
         }
 
+        // where the command writes the text it produces, return what done gives back (see Output)
+        public @NotNull Output out() {
+            if (sink != null && c_cmd == 0 && expansions == 0) {
+                written = true;
+                return sink;
+            }
+            return new Output();
+        }
+
+        // bounded by the end of the current command, whatever the local offset
         public boolean has(int index) {
             return index >= 0
-                    && hlocI(index) < vars.length
-                    && index < cmd_var_counts[c_cmd];
+                    && hlocI(index) < end();
         }
         public boolean has(int index, Class<?> type) {
             return index >= 0
-                    && hlocI(index) < vars.length
-                    && index < cmd_var_counts[c_cmd]
-                    && type.isInstance(vars[hlocI(index)]);
+                    && hlocI(index) < end()
+                    && type.isInstance(slot(hlocI(index)));
         }
         public String require(int index, String error) {
             if (!has(index, String.class))
                 throw new IllegalArgumentException(error);
-            return (String) vars[locI(index)];
+            return (String) slot(locI(index));
         }
         public <T> T require(int index, Class<T> type, String error) {
             if (!has(index, type))
                 throw new IllegalArgumentException(error);
-            return type.cast(vars[locI(index)]);
+            return type.cast(slot(locI(index)));
         }
 
 
         // Getting locals
         public <T> T get(int index) {
-            return (T) vars[locI(index)];
+            return (T) slot(locI(index));
         }
-        public <T> T get(int index, Class<T> cast) { return (T) vars[locI(index)]; }
+        public <T> T get(int index, Class<T> cast) { return (T) slot(locI(index)); }
         public <T> T getOr(int index, T def, Class<T> cast) {
-            return has(index) ? (T) vars[locI(index)] : def;
+            return has(index) ? (T) slot(locI(index)) : def;
         }
-        public Object getS(int index) { return vars[locI(index)]; }
+        public Object getS(int index) { return slot(locI(index)); }
         public int getInt(int index) {
-            if (vars[locI(index)] instanceof Integer i) {
-                return i;
-            } else return Integer.parseInt(Objects.toString(vars[locI(index)]));
+            int i = locI(index);
+            if (tags[i] == CompiledCommand.LONG) {
+                long l = plan.numbers[i];
+                if ((int) l == l) return (int) l;
+            }
+            if (slot(i) instanceof Integer itgr) {
+                return itgr;
+            } else return Integer.parseInt(Objects.toString(vars[i]));
         }
         public long getLong(int index) {
-            if (vars[locI(index)] instanceof Long lng) {
+            int i = locI(index);
+            if (tags[i] == CompiledCommand.LONG) return plan.numbers[i];
+            if (slot(i) instanceof Long lng) {
                 return lng;
-            } else return Long.parseLong(Objects.toString(vars[locI(index)]));
+            } else return Long.parseLong(Objects.toString(vars[i]));
         }
         public float getFloat(int index) {
-            if (vars[locI(index)] instanceof Float itgr) {
-                return itgr;
-            } else return Float.parseFloat(Objects.toString(vars[locI(index)]));
+            int i = locI(index);
+            if (tags[i] == CompiledCommand.LONG) return plan.numbers[i];
+            if (slot(i) instanceof Float flt) {
+                return flt;
+            } else return Float.parseFloat(Objects.toString(vars[i]));
         }
         public double getDouble(int index) {
-            if (vars[locI(index)] instanceof Double i) {
-                return i;
-            } else return Double.parseDouble(Objects.toString(vars[locI(index)]));
+            int i = locI(index);
+            byte tag = tags[i];
+            if (tag == CompiledCommand.LONG) return plan.numbers[i];
+            if (tag == CompiledCommand.DOUBLE) return Double.longBitsToDouble(plan.numbers[i]);
+            if (slot(i) instanceof Double dble) {
+                return dble;
+            } else return Double.parseDouble(Objects.toString(vars[i]));
         }
 
         public <T> T getOr(int index, T def) {
-            return has(index) ? (T) vars[locI(index)] : def;
+            return has(index) ? (T) slot(locI(index)) : def;
         }
         public int getIntOr(int index, int def) {
             if (!has(index)) {
                 return def;
             }
             int i = locI(index);
-            try {
-                if (vars[i] instanceof Integer itgr) {
-                    return itgr;
-                } else return Integer.parseInt(Objects.toString(vars[i]));
-            } catch (NumberFormatException e) {
-                return def;
+            byte tag = tags[i];
+            if (tag == CompiledCommand.LONG) {
+                long l = plan.numbers[i];
+                return (int) l == l ? (int) l : def;
             }
+            // the lexer already knows these aren't integers
+            if (tag == CompiledCommand.DOUBLE) return def;
+            Object v = slot(i);
+            if (v instanceof Integer itgr) return itgr;
+            String str = Objects.toString(v);
+            return Numbers.isInt(str) ? Integer.parseInt(str) : def;
         }
         public long getLongOr(int index, long def) {
             if (!has(index)) {
                 return def;
             }
             int i = locI(index);
-            try {
-                if (vars[i] instanceof Long lng) {
-                    return lng;
-                } else return Long.parseLong(Objects.toString(vars[i]));
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            byte tag = tags[i];
+            if (tag == CompiledCommand.LONG) return plan.numbers[i];
+            if (tag == CompiledCommand.DOUBLE) return def;
+            Object v = slot(i);
+            if (v instanceof Long lng) return lng;
+            String str = Objects.toString(v);
+            return Numbers.isLong(str) ? Long.parseLong(str) : def;
         }
         public float getFloatOr(int index, float def) {
             if (!has(index)) return def;
             int i = locI(index);
+            if (tags[i] == CompiledCommand.LONG) return plan.numbers[i];
+            Object v = slot(i);
+            if (v instanceof Float flt) return flt;
+            String str = Objects.toString(v);
+            if (!Numbers.maybeDouble(str)) return def;
             try {
-                if (vars[i] instanceof Float flt) {
-                    return flt;
-                } else return Float.parseFloat(Objects.toString(vars[i]));
+                return Float.parseFloat(str);
             } catch (NumberFormatException e) {
                 return def;
             }
@@ -338,10 +467,15 @@ public class Interpreter {
         public double getDoubleOr(int index, double def) {
             if (!has(index)) return def;
             int i = locI(index);
+            byte tag = tags[i];
+            if (tag == CompiledCommand.LONG) return plan.numbers[i];
+            if (tag == CompiledCommand.DOUBLE) return Double.longBitsToDouble(plan.numbers[i]);
+            Object v = slot(i);
+            if (v instanceof Double dble) return dble;
+            String str = Objects.toString(v);
+            if (!Numbers.maybeDouble(str)) return def;
             try {
-                if (vars[i] instanceof Double dble) {
-                    return dble;
-                } else return Double.parseDouble(Objects.toString(vars[i]));
+                return Double.parseDouble(str);
             } catch (NumberFormatException e) {
                 return def;
             }
@@ -351,7 +485,7 @@ public class Interpreter {
             if (!has(index)) return def;
             int i = locI(index);
             try {
-                if (vars[i] instanceof UUID uuid) {
+                if (slot(i) instanceof UUID uuid) {
                     return uuid;
                 } else return UUID.fromString(Objects.toString(vars[i]));
             } catch (IllegalArgumentException e) {
@@ -360,14 +494,28 @@ public class Interpreter {
         }
 
         // Global vars
-        public <T> T get(String variable) { return (T) global_variables.get(variable); }
-        public <T> T getOr(String variable, T def) { return (T) global_variables.getOrDefault(variable, def); }
-        public <T> T get(String variable, Class<T> cast) { return (T) global_variables.get(variable); }
-        public Object getS(String variable) { return global_variables.get(variable); }
-        public Object getSOr(String variable, Object def) { return global_variables.getOrDefault(variable, def); }
-        public boolean has(String variable) { return global_variables.containsKey(variable); }
+        public <T> T get(String variable) { return (T) scope.get(variable); }
+        public <T> T getOr(String variable, T def) { return (T) scope.getOrDefault(variable, def); }
+        public <T> T get(String variable, Class<T> cast) { return (T) scope.get(variable); }
+        public Object getS(String variable) { return scope.get(variable); }
+        public Object getSOr(String variable, Object def) { return scope.getOrDefault(variable, def); }
+        public boolean has(String variable) { return scope.has(variable); }
+
+        public Object set(String var_name, Object value) { return scope.set(var_name, value); }
+
+        // the text of a ( ) argument as it was written, for lazy commands that take code rather than what it
+        // evaluates to, null if the argument isn't a ( ) group that hasn't run
+        public @Nullable String source(int index) {
+            if (!has(index)) return null;
+            int slot = locI(index);
+            return tags[slot] == CompiledCommand.DEFERRED ? plan.getSource(plan.subs[slot]) : null;
+        }
 
-        public Object set(String var_name, Object value) { return global_variables.put(var_name, value); }
+        // what the stage before this one in a | pipeline produced, pulled as it's read, empty outside of one
+        public @NotNull Iterator<?> input() {
+            if (!plan.piped[c_cmd]) return Collections.emptyIterator();
+            return StreamFunc.iterator(slot(offsets[c_cmd + 1] - 1));
+        }
 
         // message
         public Object msg(String msg) {
@@ -378,7 +526,19 @@ public class Interpreter {
             this.msg = msg;
             return return_obj;
         }
-        public String getMsg() { return msg; }
+        // built only if the message is read
+        public Object msg(@NotNull Supplier<String> msg) {
+            this.msg = msg;
+            return null;
+        }
+        public Object msg(@NotNull Supplier<String> msg, Object return_obj) {
+            this.msg = msg;
+            return return_obj;
+        }
+        public String getMsg() {
+            if (msg instanceof Supplier<?> s) msg = Objects.toString(s.get());
+            return (String) msg;
+        }
         public @Nullable Object err(String error_msg) {
             this.error = true;
             this.msg = error_msg;
@@ -389,25 +549,73 @@ public class Interpreter {
             this.msg = error_msg;
             return return_object;
         }
+        public @Nullable Object err(@NotNull Supplier<String> error_msg) {
+            this.error = true;
+            this.msg = error_msg;
+            return null;
+        }
+        public Object err(@NotNull Supplier<String> error_msg, Object return_object) {
+            this.error = true;
+            this.msg = error_msg;
+            return return_object;
+        }
+        private @Nullable Object fail(@NotNull Result.Status status, int pos, @NotNull Object error_msg) {
+            this.error = true;
+            this.error_status = status;
+            this.error_pos = pos;
+            this.msg = error_msg;
+            return null;
+        }
+        private @NotNull Result result(Object value) {
+            if (!error) return Result.of(Result.Status.OK, value, msg, 0);
+            return Result.of(error_status != null ? error_status : Result.Status.ERROR, value, msg, error_pos);
+        }
+    }
+
+    private static final int[] NO_FRAMES = new int[0];
+    // flags of a frame
+    private static final int LAZY = 1, FORKED = 2;
+    // forked levels a command may be nested in, each one is a Java call, deeper ( ) arguments run one after the other
+    private static final int MAX_FORKS = 32;
+
+    private static final class DeferredFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final Object value;
+        DeferredFailure(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    // null, false, 0, "", "false" and "0" are false, anything else is true
+    static boolean truthy(@Nullable Object obj) {
+        if (obj == null) return false;
+        if (obj instanceof Boolean b) return b;
+        if (obj instanceof Number n) return n.doubleValue() != 0;
+        if (obj instanceof String s) return !s.isEmpty() && !s.equals("0") && !s.equalsIgnoreCase("false");
+        return true;
+    }
+
+    private static boolean containsAll(@NotNull String str, String @NotNull [] parts) {
+        for (String p : parts) if (!str.contains(p)) return false;
+        return true;
     }
 
     private void addBasicCommands() {
         rootCommand("print", vars -> {
-            StringBuilder sb = new StringBuilder();
-            boolean com = false;
+            Output out = vars.out();
             for (int i = 0; i < vars.length(); i++) {
-                if (com) sb.append(", ");
-                sb.append(Objects.toString(vars.get(i)));
-                com = true;
+                if (i > 0) out.append(", ");
+                out.print(vars.get(i));
             }
-            return sb.toString();
+            return out.done();
         }, false);
         rootCommand("type", vars -> {
             if (vars.length() == 0) return null;
             boolean fn = false;
             boolean t = false;
             boolean n = false;
-            StringBuilder sb = new StringBuilder();
+            Output out = vars.out();
             boolean comma = false;
             for (int i = 0; i < vars.length(); i++) {
                 Object obj = vars.get(i);
@@ -432,25 +640,23 @@ public class Interpreter {
                         }
                     }
                 }
-                if (comma) sb.append(", ");
-                String app = "";
+                if (comma) out.append(", ");
                 Class<?> c = obj.getClass();
 
                 if (t) {
-                    if (c.isInterface()) app += "interface";
-                    else if (c.isRecord()) app += "record";
-                    else if (c.isEnum()) app += "enum";
-                    else if (c.isAnnotation()) app += "annotation";
-                    else app += "class";
+                    if (c.isInterface()) out.append("interface");
+                    else if (c.isRecord()) out.append("record");
+                    else if (c.isEnum()) out.append("enum");
+                    else if (c.isAnnotation()) out.append("annotation");
+                    else out.append("class");
                 }
                 if (!t || fn || n) {
-                    if (t) app += " ";
-                    app += fn ? c.getName() : c.getSimpleName();
+                    if (t) out.append(' ');
+                    out.append(fn ? c.getName() : c.getSimpleName());
                 }
-                sb.append(app);
                 comma = true;
             }
-            return sb.toString();
+            return out.done();
         });
         rootCommand("time", vars -> {
             int len = vars.length();
@@ -464,182 +670,690 @@ public class Interpreter {
             }
         }, false);
         rootCommand("javaitpr", vars -> VERSION);
+        // lazy, only the arguments that decide the result are evaluated
+        rootCommand("if", VarFunc.lazy(vars -> {
+            if (vars.length() < 2) return vars.err("Usage: if <condition> <then> [else]");
+            if (truthy(vars.get(0))) return vars.get(1);
+            return vars.getOr(2, null);
+        }), false);
+        rootCommand("and", VarFunc.lazy(vars -> {
+            Object v = Boolean.TRUE;
+            for (int i = 0; i < vars.length(); i++)
+                if (!truthy(v = vars.get(i))) return v;
+            return v;
+        }), false);
+        rootCommand("or", VarFunc.lazy(vars -> {
+            Object v = Boolean.FALSE;
+            for (int i = 0; i < vars.length(); i++)
+                if (truthy(v = vars.get(i))) return v;
+            return v;
+        }), false);
+        rootCommand("default", VarFunc.lazy(vars -> {
+            for (int i = 0; i < vars.length(); i++) {
+                Object v = vars.get(i);
+                if (v != null) return v;
+            }
+            return null;
+        }), false);
+        // def <name> (<template>), a command running template with its arguments as $1, $2... (see defineMacro)
+        rootCommand("def", VarFunc.lazy(vars -> {
+            if (vars.length() < 2 || !vars.has(0, String.class)) return vars.err("Usage: def <name> (<template>)");
+            String name = vars.get(0);
+            String template = vars.source(1);
+            if (template == null && vars.get(1) instanceof String s) template = s;
+            if (template == null) return vars.err("Usage: def <name> (<template>)");
+            String error = macro(name, template);
+            return error != null ? vars.err(error) : vars.msg(() -> "Defined " + name);
+        }), false);
+        // streaming, for | pipelines
+        rootCommand("range", (StreamFunc) (vars, input) -> {
+            if (vars.length() == 0) return vars.err("Usage: range <from> [to] [step]");
+            long from = vars.getLongOr(0, 0);
+            long to = vars.getLongOr(1, Long.MAX_VALUE);
+            long step = vars.getLongOr(2, 1);
+            if (step <= 0) return vars.err("Step must be positive");
+            // to included, without one it goes on for as long as it's read
+            return new Iterator<Long>() {
+                private long next = from;
+                private boolean done = from > to;
+                @Override public boolean hasNext() { return !done; }
+                @Override
+                public Long next() {
+                    if (done) throw new NoSuchElementException();
+                    long v = next;
+                    // to - v can't be negative, but can be past Long.MAX_VALUE
+                    if (Long.compareUnsigned(to - v, step) < 0) done = true;
+                    else next = v + step;
+                    return v;
+                }
+            };
+        }, false);
+        rootCommand("take", (StreamFunc) (vars, input) -> {
+            long n = vars.getLongOr(0, -1);
+            if (n < 0) return vars.err("Usage: take <count>");
+            return new Iterator<>() {
+                private long left = n;
+                @Override public boolean hasNext() { return left > 0 && input.hasNext(); }
+                @Override
+                public Object next() {
+                    if (left <= 0) throw new NoSuchElementException();
+                    left--;
+                    return input.next();
+                }
+            };
+        }, false);
+        rootCommand("skip", (StreamFunc) (vars, input) -> {
+            long n = vars.getLongOr(0, -1);
+            if (n < 0) return vars.err("Usage: skip <count>");
+            return new Iterator<>() {
+                private long left = n;
+                @Override
+                public boolean hasNext() {
+                    for (; left > 0 && input.hasNext(); left--) input.next();
+                    return input.hasNext();
+                }
+                @Override
+                public Object next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    return input.next();
+                }
+            };
+        }, false);
+        // the elements whose text contains every argument
+        rootCommand("grep", (StreamFunc) (vars, input) -> {
+            String[] parts = new String[vars.length()];
+            for (int i = 0; i < parts.length; i++) parts[i] = Objects.toString(vars.get(i));
+            return new Iterator<>() {
+                private Object next;
+                private boolean ready = false;
+                @Override
+                public boolean hasNext() {
+                    while (!ready && input.hasNext()) {
+                        Object e = input.next();
+                        if (containsAll(Objects.toString(e), parts)) {
+                            next = e;
+                            ready = true;
+                        }
+                    }
+                    return ready;
+                }
+                @Override
+                public Object next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    ready = false;
+                    Object e = next;
+                    next = null;
+                    return e;
+                }
+            };
+        }, false);
+        rootCommand("count", (StreamFunc) (vars, input) -> {
+            long n = 0;
+            for (; input.hasNext(); n++) input.next();
+            return n;
+        }, false);
+        // transactions over the session's variables, see VariableScope.Transaction
+        rootCommand("begin", vars -> {
+            Session s = vars.session;
+            if (s == null) return vars.err("Transactions need a session");
+            if (s.inTransaction()) return vars.err("Already in a transaction");
+            s.begin();
+            return vars.msg("Transaction started");
+        }, false);
+        rootCommand("commit", vars -> {
+            Session s = vars.session;
+            if (s == null || !s.inTransaction()) return vars.err("Not in a transaction");
+            return s.commit() ? vars.msg("Committed") : vars.err("Conflicting changes, rolled back");
+        }, false);
+        rootCommand("rollback", vars -> {
+            Session s = vars.session;
+            if (s == null || !s.inTransaction()) return vars.err("Not in a transaction");
+            s.rollback();
+            return vars.msg("Rolled back");
+        }, false);
+        rootCommand("stats", vars -> {
+            CommandMetrics m = metrics;
+            if (m == null) return vars.msg("Metrics are disabled");
+            String filter = vars.length() > 0 ? vars.get(0) : null;
+            if ("reset".equals(filter)) {
+                m.reset();
+                return vars.msg("Metrics reset");
+            }
+            Output out = vars.out();
+            boolean first = true;
+            for (CommandMetrics.Stats st : m.all()) {
+                if (filter != null && !st.getName().startsWith(filter)) continue;
+                if (!first) out.append('\n');
+                out.print(st);
+                first = false;
+            }
+            return out.done();
+        }, false);
     }
 
-    public Map<String, VarFunc> getCommands() {
-        return commands;
+    // a live view, a command put in or removed through it is seen by the next run like one registered with rootCommand
+    public Map<String, VarFunc> getCommands() { return registry; }
+
+    // getCommands' view of the registry, every change through it moves registry_version on
+    private final class Registry extends AbstractMap<String, VarFunc> {
+        @Override public int size() { return commands.size(); }
+        @Override public boolean containsKey(Object key) { return commands.containsKey(key); }
+        @Override public VarFunc get(Object key) { return commands.get(key); }
+        @Override
+        public VarFunc put(String key, VarFunc value) {
+            VarFunc old = commands.put(key, value);
+            changed(key, old);
+            return old;
+        }
+        @Override
+        public VarFunc remove(Object key) {
+            VarFunc old = commands.remove(key);
+            if (old != null) changed((String) key, old);
+            return old;
+        }
+        @Override
+        public void clear() {
+            commands.clear();
+            registry_version.incrementAndGet();
+            results.clear();
+        }
+        @Override
+        public @NotNull Set<Entry<String, VarFunc>> entrySet() {
+            return new AbstractSet<>() {
+                @Override public int size() { return commands.size(); }
+                @Override
+                public @NotNull Iterator<Entry<String, VarFunc>> iterator() {
+                    Iterator<Entry<String, VarFunc>> it = commands.entrySet().iterator();
+                    return new Iterator<>() {
+                        private Entry<String, VarFunc> last;
+                        @Override public boolean hasNext() { return it.hasNext(); }
+                        @Override
+                        public Entry<String, VarFunc> next() {
+                            last = it.next();
+                            return new SimpleEntry<>(last) {
+                                @Override
+                                public VarFunc setValue(VarFunc value) {
+                                    super.setValue(value);
+                                    return put(getKey(), value);
+                                }
+                            };
+                        }
+                        @Override
+                        public void remove() {
+                            it.remove();
+                            changed(last.getKey(), last.getValue());
+                        }
+                    };
+                }
+            };
+        }
+    }
+    // plans resolved against the registry and results of a replaced command can no longer be trusted
+    private void changed(@NotNull String cmd, @Nullable VarFunc old) {
+        if (old != null) results.invalidate(cmd, old);
+        registry_version.incrementAndGet();
+    }
+
+    SymbolTable<VarFunc> commandTable() {
+        SymbolTable<VarFunc> t = command_table;
+        long v = registry_version.get();
+        if (t.version != v) command_table = t = new SymbolTable<>(commands, v);
+        return t;
+    }
+    public @Nullable VarFunc getCommand(@NotNull CharSequence name) { return commandTable().get(name); }
+    // command names starting with prefix, in order
+    public @NotNull List<String> complete(@NotNull CharSequence prefix) {
+        SymbolTable<VarFunc> table = commandTable();
+        CompletionTrie t = command_trie;
+        if (t == null || t.version != table.version) command_trie = t = new CompletionTrie(table.keys(), table.version);
+        return t.complete(prefix);
     }
+    public @NotNull InputParser newInputParser() { return new InputParser(this); }
+    // end is exclusive
+    public @Nullable VarFunc getCommand(char @NotNull [] chars, int start, int end) { return commandTable().get(chars, start, end); }
 
     public Map<String, Object> getGlobalVariables() {
-        return global_variables;
+        return global_variables.asMap();
+    }
+    public @NotNull VariableScope getGlobalScope() { return global_variables; }
+
+    // keeps the global variables in dir across restarts, see VariableJournal
+    public @NotNull VariableJournal persistVariables(@NotNull Path dir) throws IOException {
+        return persistVariables(new VariableJournal(dir));
+    }
+    public @NotNull VariableJournal persistVariables(@NotNull VariableJournal journal) throws IOException {
+        return journal.open(global_variables);
     }
 
     public Object getVar(String var_name) { return global_variables.get(var_name); }
-    public Object setVar(String var_name, Object value) { return global_variables.put(var_name, value); }
+    public Object setVar(String var_name, Object value) { return global_variables.set(var_name, value); }
+
+    // Sessions
+    public @NotNull Session newSession() { return newSession(true); }
+    public @NotNull Session newSession(boolean global_fallback) {
+        return new Session(this, new VariableScope(global_fallback ? global_variables : null));
+    }
+    // a session over a snapshot of the global variables, see VariableScope.snapshot
+    public @NotNull Session snapshot() { return new Session(this, global_variables.snapshot()); }
 
     public void rootCommand(String cmd, Map<String, VarFunc> mappings) {
         rootCommand(cmd, mappings, true);
     }
     public void rootCommand(String cmd, Map<String, VarFunc> mappings, boolean override) {
-        Mapper mper = new Mapper(mappings);
-        if (override) commands.put(cmd, vars -> mper);
-        else commands.putIfAbsent(cmd, vars -> mper);
+        rootCommand(cmd, new Mapper(mappings).asCommand(), override);
+    }
+
+    public void rootCommand(String cmd, Mapper mapper) {
+        rootCommand(cmd, mapper, true);
+    }
+    public void rootCommand(String cmd, Mapper mapper, boolean override) {
+        rootCommand(cmd, mapper.asCommand(), override);
+    }
+
+    // registers target's @Command methods, and target itself when its class is a @Command, a Class binds statics only
+    public void bind(@NotNull Object target) {
+        bind(target, MethodHandles.lookup(), true);
+    }
+    // lookup decides which methods can be bound, pass MethodHandles.lookup() to bind non public ones
+    public void bind(@NotNull Object target, @NotNull MethodHandles.Lookup lookup) {
+        bind(target, lookup, true);
+    }
+    public void bind(@NotNull Object target, @NotNull MethodHandles.Lookup lookup, boolean override) {
+        for (Map.Entry<String, VarFunc> e : Binder.commands(target, lookup).entrySet())
+            rootCommand(e.getKey(), e.getValue(), override);
+    }
+
+    // Registers the commands of every CommandModule the class loader's ServiceLoader finds, by name only until
+    // each module is first used. Returns how many modules were found.
+    public int loadModules() {
+        return loadModules(Thread.currentThread().getContextClassLoader());
+    }
+    public int loadModules(@Nullable ClassLoader loader) {
+        int n = 0;
+        for (CommandModule module : ServiceLoader.load(CommandModule.class, loader)) {
+            addModule(module, true);
+            n++;
+        }
+        return n;
+    }
+    public void addModule(@NotNull CommandModule module) {
+        addModule(module, true);
+    }
+    public void addModule(@NotNull CommandModule module, boolean override) {
+        LazyCommand.Module m = new LazyCommand.Module(module);
+        for (String name : module.commands()) rootCommand(name, new LazyCommand(name, m), override);
+    }
+
+    // Registers name as a command running template, whose $1, $2... are replaced by its arguments. Template is
+    // compiled here, once, and throws IllegalArgumentException if it doesn't compile. Calls then run that plan
+    // with the arguments put right into it, against the commands registered at the time of the call.
+    public void defineMacro(@NotNull String name, @NotNull String template) {
+        String error = macro(name, template);
+        if (error != null) throw new IllegalArgumentException(error);
+    }
+    // the syntax error if template doesn't compile
+    private @Nullable String macro(@NotNull String name, @NotNull String template) {
+        char[] chars = template.toCharArray();
+        CompiledCommand plan = CompiledCommand.compile(chars, 0, chars.length - 1, commandTable());
+        if (plan.error != null) return plan.error_pos < 0 ? plan.error : syntaxText(chars, plan.error_pos, plan.error, unqe_margin);
+        rootCommand(name, new Macro(this, name, chars, plan));
+        return null;
+    }
+    // Runs the macro name with args as its $1, $2..., straight from Java values, nothing is lexed or made a String.
+    public @Nullable Object handleMacro(@NotNull String name, Object @NotNull ... args) {
+        if (!(commands.get(name) instanceof Macro macro)) throw new IllegalArgumentException("No macro " + name);
+        Macro.Template t = macro.template(commandTable());
+        if (args.length < t.arity()) throw new IllegalArgumentException("Macro " + name + " takes " + t.arity() + " arguments");
+        VariableSet vs = open(t.plan(), global_variables, null);
+        try {
+            int[] slots = t.slots(), params = t.params();
+            for (int i = 0; i < slots.length; i++) vs.setSlot(slots[i], args[params[i]]);
+            return handle(t.plan(), vs);
+        } finally {
+            close(vs);
+        }
+    }
+    // runs a macro's template with the arguments of the command calling it in its parameter slots
+    @Nullable Object expand(@NotNull Macro macro, @NotNull VariableSet vars) {
+        if (vars.expansions >= max_macro_depth)
+            return vars.err("Macro " + macro.name + " nested more than " + max_macro_depth + " deep");
+        Macro.Template t = macro.template(commandTable());
+        if (vars.length() < t.arity()) return vars.err("Usage: " + macro.name + " takes " + t.arity() + " arguments");
+        VariableSet vs = open(t.plan(), vars.scope, vars.session);
+        try {
+            vs.expansions = vars.expansions + 1;
+            int[] slots = t.slots(), params = t.params();
+            for (int i = 0; i < slots.length; i++) vs.setSlot(slots[i], vars.get(params[i]));
+            Object res = handle(t.plan(), vs);
+            if (vs.error) {
+                vars.error = true;
+                vars.error_status = vs.error_status;
+                vars.error_pos = vs.error_pos;
+            }
+            if (vs.msg != null) vars.msg = vs.msg;
+            return res;
+        } finally {
+            close(vs);
+        }
     }
 
     public void rootCommand(String cmd, VarFunc func) {
         rootCommand(cmd, func, true);
     }
     public void rootCommand(String cmd, VarFunc func, boolean override) {
-        if (override) commands.put(cmd, func);
-        else commands.putIfAbsent(cmd, func);
+        if (override) changed(cmd, commands.put(cmd, func));
+        else if (commands.putIfAbsent(cmd, func) == null) registry_version.incrementAndGet();
     }
 
+    // Compilation
+    public @NotNull CompiledCommand compile(@NotNull String input) {
+        SymbolTable<VarFunc> table = commandTable();
+        CompiledCommand plan = plans.get(input, table.version);
+        if (plan == null) {
+            char[] chars = input.toCharArray();
+            plan = pool_contexts
+                    ? contexts.get().lexer.lex(chars, 0, chars.length - 1, table)
+                    : CompiledCommand.compile(chars, 0, chars.length - 1, table);
+            plans.put(input, plan);
+        }
+        return plan;
+    }
+    // a cached plan is found without making a String of input, e.g. a CharBuffer over a network read
+    public @NotNull CompiledCommand compile(@NotNull CharSequence input) {
+        if (input instanceof String s) return compile(s);
+        PlanCache.Probe probe = pool_contexts ? contexts.get().probe : new PlanCache.Probe();
+        CompiledCommand plan = plans.get(input, probe, commandTable().version);
+        return plan != null ? plan : compile(input.toString());
+    }
+    public long getPlanCacheHits() { return plans.getHits(); }
+    public long getPlanCacheMisses() { return plans.getMisses(); }
+    public int getPlanCacheSize() { return plans.size(); }
+    public void clearPlanCache() { plans.clear(); }
+    public long getResultCacheHits() { return results.getHits(); }
+    public long getResultCacheMisses() { return results.getMisses(); }
+    public long getResultCacheEvictions() { return results.getEvictions(); }
+    public int getResultCacheSize() { return results.size(); }
+    public void clearResultCache() { results.clear(); }
+
     // Execution
     public void assrt(@NotNull String input, @NotNull Function<Object, Boolean> eval) {
-        char[] chars = input.toCharArray();
-        VariableSet vs = new VariableSet(chars);
+        CompiledCommand plan = compile(input);
         Object r;
         try {
-            r = handle(chars, 0, chars.length - 1, vs);
+            r = handle(plan, global_variables);
         } catch (Exception e) {
             throw new RuntimeException("Error during execution \"" + input + "\"", e);
         }
         if (!eval.apply(r)) throw new RuntimeException("Bad behavior for \"" + input + "\", got: " + (r != null ? r.getClass().getName() : "") + " " + r);
     }
     public @NotNull String process(@NotNull String input) {
+        return process(compile(input));
+    }
+    public @NotNull String process(@NotNull CompiledCommand plan) {
+        return process(plan, global_variables);
+    }
+    @NotNull String process(@NotNull CompiledCommand plan, @NotNull VariableScope scope) {
+        return process(plan, scope, null);
+    }
+    @NotNull String process(@NotNull CompiledCommand plan, @NotNull Session session) {
+        return process(plan, session.current(), session);
+    }
+    private @NotNull String process(@NotNull CompiledCommand plan, @NotNull VariableScope scope, @Nullable Session session) {
+        VariableSet vs = open(plan, scope, session);
         try {
-            char[] chars = input.toCharArray();
-            VariableSet vs = new VariableSet(chars);
-            Object res = handle(chars, 0, chars.length - 1, vs);
-            return vs.msg != null ? vs.msg : Objects.toString(res);
+            Object res = handle(plan, vs);
+            return vs.msg != null ? vs.getMsg() : Objects.toString(res);
         } catch (Exception e) {
 //            return e.getMessage();
             throw new RuntimeException(e);
+        } finally {
+            close(vs);
+        }
+    }
+    // What process returns, written to out instead. A command at the top that writes its text (see VariableSet.out)
+    // writes it straight into out, and nothing is added after it. IOExceptions of out come as UncheckedIOException.
+    public void process(@NotNull String input, @NotNull Appendable out) {
+        process(compile(input), out);
+    }
+    public void process(@NotNull CompiledCommand plan, @NotNull Appendable out) {
+        process(plan, global_variables, null, out);
+    }
+    void process(@NotNull CompiledCommand plan, @NotNull Session session, @NotNull Appendable out) {
+        process(plan, session.current(), session, out);
+    }
+    private void process(@NotNull CompiledCommand plan, @NotNull VariableScope scope, @Nullable Session session, @NotNull Appendable out) {
+        VariableSet vs = open(plan, scope, session);
+        try {
+            Output o = vs.sink = new Output(out);
+            Object res = handle(plan, vs);
+            if (!vs.written) o.append(vs.msg != null ? vs.getMsg() : Objects.toString(res));
+        } catch (UncheckedIOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            close(vs);
+        }
+    }
+    // Runs input without throwing, whatever happens, see Result.
+    public @NotNull Result execute(@NotNull String input) {
+        return execute(compile(input));
+    }
+    public @NotNull Result execute(@NotNull CharSequence input) {
+        return execute(compile(input));
+    }
+    public @NotNull Result execute(@NotNull CompiledCommand plan) {
+        return execute(plan, global_variables, null);
+    }
+    @NotNull Result execute(@NotNull CompiledCommand plan, @NotNull Session session) {
+        return execute(plan, session.current(), session);
+    }
+    private @NotNull Result execute(@NotNull CompiledCommand plan, @NotNull VariableScope scope, @Nullable Session session) {
+        VariableSet vs = open(plan, scope, session);
+        try {
+            return vs.result(handle(plan, vs));
+        } catch (Exception e) {
+            return Result.thrown(e);
+        } finally {
+            close(vs);
+        }
+    }
+    // Same, with the Result's text (its toString) written to out as process does. Nothing is written for an
+    // EXCEPTION, except what the command wrote before it, and the value is null if the command wrote it to out.
+    public @NotNull Result execute(@NotNull String input, @NotNull Appendable out) {
+        return execute(compile(input), out);
+    }
+    public @NotNull Result execute(@NotNull CompiledCommand plan, @NotNull Appendable out) {
+        return execute(plan, global_variables, null, out);
+    }
+    @NotNull Result execute(@NotNull CompiledCommand plan, @NotNull Session session, @NotNull Appendable out) {
+        return execute(plan, session.current(), session, out);
+    }
+    private @NotNull Result execute(@NotNull CompiledCommand plan, @NotNull VariableScope scope, @Nullable Session session, @NotNull Appendable out) {
+        VariableSet vs = open(plan, scope, session);
+        try {
+            Output o = vs.sink = new Output(out);
+            Object res = handle(plan, vs);
+            if (vs.written) return vs.result(null);
+            Result r = vs.result(res);
+            o.append(r.toString());
+            return r;
+        } catch (Exception e) {
+            return Result.thrown(e);
+        } finally {
+            close(vs);
         }
     }
     public @Nullable Object handle(@NotNull String input) {
-        char[] chars = input.toCharArray();
-        VariableSet vs = new VariableSet(chars);
-        return handle(chars, 0, chars.length-1, vs);
+        return handle(compile(input));
     }
-    public @Nullable Object handle(char[] chars, int start, int end) {
-        return handle(chars, start, end, new VariableSet(chars, start, end));
+    public @Nullable Object handle(@NotNull CharSequence input) {
+        return handle(compile(input));
+    }
+    public @Nullable Object handle(@NotNull CompiledCommand plan) {
+        return handle(plan, global_variables);
+    }
+    @Nullable Object handle(@NotNull CompiledCommand plan, @NotNull VariableScope scope) {
+        return handle(plan, scope, null);
+    }
+    @Nullable Object handle(@NotNull CompiledCommand plan, @NotNull Session session) {
+        return handle(plan, session.current(), session);
+    }
+    private @Nullable Object handle(@NotNull CompiledCommand plan, @NotNull VariableScope scope, @Nullable Session session) {
+        VariableSet vs = open(plan, scope, session);
+        try {
+            return handle(plan, vs);
+        } finally {
+            close(vs);
+        }
     }
-    private @Nullable Object handle(char[] chars, int start, int end, VariableSet variables) {
-        if (end == 0 || isEmpty(chars, start, end)) return null;
-
-        //trim ends
-        while (start < end && isEmpty(chars[start])) start++;
-        while (end > start && isEmpty(chars[end])) end--;
-
-        int cmd_index = variables.next();
-
-        int param_count = 0;
-
-        int i = start;
-        int next_start = start;
-        boolean val = false;
-        boolean dq = false;
-        boolean sq = false;
-        boolean force_add = false;
-        int depth = 0;
-        StringBuilder buff = new StringBuilder();
-        while (i <= end) {
-            if (force_add) {
-                buff.append(chars[i++]);
-                val = true;
-                force_add = false;
-                continue;
-            }
-            char c = chars[i];
-
-
-            if (c == '\\') {
-                i++;
-                force_add = true;
-                continue;
-            }
-
-            if (c == '\"') {
-                dq = !dq;
-                val = true;
-                if (dq) next_start = i + 1;
-            } else if (c == '\'') {
-                sq = !sq;
-                val = true;
-                if (sq) next_start = i + 1;
-            }
 
-            if (dq || sq) {
-                if (c != '\"' && c != '\'') buff.append(c);
-                i++;
+    // Per thread, a stack of VariableSets so a command can run commands itself, each level getting its own, and
+    // the scratch space compiling needs. Sets past the stack's size are left to the GC.
+    private final class Contexts {
+        private final VariableSet[] free = new VariableSet[8];
+        private int top = 0;
+        private final Lexer lexer = new Lexer();
+        private final PlanCache.Probe probe = new PlanCache.Probe();
+
+        private VariableSet acquire(CompiledCommand plan, VariableScope scope, Session session) {
+            VariableSet vs;
+            if (top > 0) {
+                vs = free[--top];
+                free[top] = null;
+                vs.reset(plan, scope, session);
+            } else {
+                vs = new VariableSet(plan, scope);
+                vs.session = session;
+                vs.pool = this;
             }
-            else {
-                if (c == '(') {
-                    depth++;
-                    next_start = ++i;
-                    while (i <= end) {
-                        if (chars[i] == '(') depth++;
-                        else if (chars[i] == ')') {
-                            depth--;
-                            if (depth == 0) {
-                                break;
-                            }
-                        }
-                        i++;
+            return vs;
+        }
+        private void release(VariableSet vs) {
+            vs.clear();
+            if (top < free.length) free[top++] = vs;
+        }
+    }
+    private @NotNull VariableSet open(@NotNull CompiledCommand plan, @NotNull VariableScope scope, @Nullable Session session) {
+        if (pool_contexts) return contexts.get().acquire(plan, scope, session);
+        VariableSet vs = new VariableSet(plan, scope);
+        vs.session = session;
+        return vs;
+    }
+    private static void close(@NotNull VariableSet vs) {
+        if (vs.pool != null) vs.pool.release(vs);
+    }
+    public @NotNull CompletableFuture<Object> handleAsync(@NotNull String input) {
+        return handleAsync(input, global_variables);
+    }
+    @NotNull CompletableFuture<Object> handleAsync(@NotNull String input, @NotNull VariableScope scope) {
+        return CompletableFuture.supplyAsync(() -> handle(compile(input), scope), executor);
+    }
+    @NotNull CompletableFuture<Object> handleAsync(@NotNull String input, @NotNull Session session) {
+        return CompletableFuture.supplyAsync(() -> handle(compile(input), session), executor);
+    }
+    public @Nullable Object handle(char[] chars, int start, int end) {
+        char[] range = Arrays.copyOfRange(chars, start, end + 1);
+        return handle(CompiledCommand.compile(range, 0, range.length - 1, commandTable()));
+    }
+    private @Nullable Object handle(@NotNull CompiledCommand plan, @NotNull VariableSet variables) {
+        if (plan.error != null) {
+            if (plan.error_pos < 0) return variables.fail(Result.Status.SYNTAX_ERROR, 0, plan.error);
+            return syntaxError(plan.chars, variables, plan.error_pos, plan.error);
+        }
+        if (plan.arg_counts.length == 0) return null;
+        // resolutions made at compile time only hold while the registry is unchanged
+        boolean resolved = plan.registry_version == registry_version.get();
+        if (resolved && compile_threshold > 0 && metrics == null && !parallel_subcommands && !lazy_subcommands) {
+            TierCompiler.Tiered tier = plan.tier;
+            if (tier == null && !plan.tiered && ++plan.runs >= compile_threshold) tier = plan.promote();
+            if (tier != null) return tier.run(variables);
+        }
+        variables.resolved = resolved;
+        return evaluate(plan, 0, variables, resolved);
+    }
+    // a deferred argument that fails unwinds every command reading it, error and msg are already set
+    private @Nullable Object evaluate(@NotNull CompiledCommand plan, int cmd_index, @NotNull VariableSet variables, boolean resolved) {
+        try {
+            return handle(plan, cmd_index, variables, resolved);
+        } catch (DeferredFailure f) {
+            return f.value;
+        }
+    }
+    // Evaluation runs a command's ( ) arguments before the command, left to right, without recursing: the command
+    // waiting on an argument is pushed as a frame of the VariableSet and picked up again once the argument is done,
+    // so nesting is only limited by max_nesting_depth. Deferred arguments run it again on top of the same frames.
+    private @Nullable Object handle(@NotNull CompiledCommand plan, int cmd_index, @NotNull VariableSet variables, boolean resolved) {
+        int base = variables.depth;
+        try {
+            int cmd = cmd_index;
+            int slot = -1;
+            int flags = 0;
+            while (true) {
+                int from = plan.offsets[cmd];
+                int to = plan.offsets[cmd + 1];
+                // the stage before this one, always run here and last
+                int pipe = plan.piped[cmd] ? to - 1 : -1;
+                if (slot < 0) {
+                    boolean lazy = isLazy(plan, cmd, resolved);
+                    boolean forked = !lazy && parallel_subcommands && variables.forks < MAX_FORKS && hasSiblings(plan, from, pipe >= 0 ? pipe : to);
+                    if (forked) {
+                        if (variables.outer + variables.depth >= max_nesting_depth)
+                            return variables.fail(Result.Status.ERROR, 0, "Commands nested deeper than " + max_nesting_depth);
+                        Object obj = handleSiblings(plan, from, pipe >= 0 ? pipe : to, variables, resolved);
+                        if (variables.error) return obj;
                     }
-                    if (depth != 0) break;
-
-                    // inset command
-                    Object obj = handle(chars, next_start, i - 1, variables);
-                    if (variables.error) return obj;
-                    variables.msg = null;
-                    variables.set(
-                            cmd_index,
-                            param_count++,
-                            obj
-                    );
-
-                    do i++;
-                    while (i <= end && chars[i] == ' ');
-
-                    next_start = i;
-                } else if (c == ' ' || c == '\"' || c == '\'') {
-                    if (val) {
-                        variables.set(
-                                cmd_index,
-                                param_count++,
-//                                new String(chars, next_start, i - next_start) saves 3ns I guess
-                                buff.toString()
-                        );
-                        buff.setLength(0);
-                        val = false;
+                    flags = (lazy ? LAZY : 0) | (forked ? FORKED : 0);
+                    slot = from;
+                }
+                // on to the next argument that runs now
+                for (; slot < to; slot++) {
+                    if (plan.subs[slot] < 0) continue;
+                    if ((flags & FORKED) != 0 && slot != pipe) continue;
+                    // the head picks the command, so it can't wait
+                    if ((flags & LAZY) != 0 && slot != from && slot != pipe) {
+                        variables.defer(slot);
+                        continue;
                     }
-                    i++;
-                    next_start = i;
-                } else {
-                    if (!val) next_start = i;
-                    val = true;
-                    buff.append(c);
-                    i++;
+                    break;
+                }
+                if (slot < to) {
+                    if (variables.outer + variables.depth >= max_nesting_depth)
+                        return variables.fail(Result.Status.ERROR, 0, "Commands nested deeper than " + max_nesting_depth);
+                    // inset command
+                    variables.push(cmd, slot, flags);
+                    cmd = plan.subs[slot];
+                    slot = -1;
+                    continue;
+                }
+                Object obj = command(plan, cmd, variables, resolved, (flags & LAZY) != 0);
+                if (variables.depth == base || variables.error) return obj;
+                // back to the command waiting on it
+                int i = --variables.depth * 3;
+                cmd = variables.frames[i];
+                slot = variables.frames[i + 1];
+                flags = variables.frames[i + 2];
+                variables.msg = null;
+                if (plan.piped[cmd] && slot == plan.offsets[cmd + 1] - 1) {
+                    if (isStreaming(plan, cmd, resolved)) variables.pipe(slot, obj);
+                    // anything else made a stream read it out already
+                    else variables.setSlot(slot, StreamFunc.collect(obj));
                 }
+                else variables.setSlot(slot, obj);
+                slot++;
             }
+        } finally {
+            variables.depth = base;
         }
-
-        // Erros
-        if (dq || sq) return syntaxError(chars, variables, next_start, "Unresolved quote at ");
-        else if (depth != 0) return syntaxError(chars, variables, next_start, "Unresolved parentheses at ");
-        else if (force_add) return variables.err("Empty escape at end");
-
-        String cmd = null;
-        if (val) cmd =
-//                    new String(chars, next_start, i - next_start); saves 3ns I guess
-                    buff.toString();
-
-        if (val && param_count != 0) {
-            variables.set(cmd_index, param_count++, cmd);
-            cmd = null;
-        }
+    }
+    // runs a command whose ( ) arguments are in place
+    private @Nullable Object command(@NotNull CompiledCommand plan, int cmd_index, @NotNull VariableSet variables, boolean resolved, boolean lazy) {
+        int from = plan.offsets[cmd_index];
+        int to = plan.offsets[cmd_index + 1];
+        boolean single = plan.single[cmd_index];
+        String head = plan.heads[cmd_index];
+        int param_count = single ? 0 : to - from;
+        String cmd = single ? head : null;
 
         // make sure variables know what level we're on
         variables.currentCommand(cmd_index);
@@ -656,35 +1370,38 @@ public class Interpreter {
         if (cmd != null && cmd.startsWith("$")) {
             // assignment
             if (variables.has(1) && "=".equals(variables.get(1))) {
-                String key = cmd.substring(1);
+                String key = variables.varName(0, cmd);
                 if (variables.has(2)) {
                     Object obj = variables.get(2);
-                    global_variables.put(key, obj);
-                    variables.msg("Set " + cmd + " = " + (obj instanceof String s ? "\"" + s + "\"" : obj));
+                    variables.scope.set(key, obj);
+                    String name = cmd;
+                    variables.msg(() -> "Set " + name + " = " + (obj instanceof String s ? "\"" + s + "\"" : obj));
                     return variables.trySetLast(obj);
                 }
                 // unassign if no other value is present
                 else {
-                    global_variables.remove(key);
-                    variables.msg("Unset " + cmd);
+                    variables.scope.remove(key);
+                    String name = cmd;
+                    variables.msg(() -> "Unset " + name);
                     return null;
                 }
             }
             // value retrieval
             else if (param_count == 0) {
-                String key = cmd.substring(1);
-                Object v;
-                if (global_variables.containsKey(key)) {
-                    return variables.msg(cmd + " = " + (v = global_variables.get(key)), v);
+                String key = cmd == head ? plan.names[from] : cmd.substring(1);
+                if (variables.scope.has(key)) {
+                    String name = cmd;
+                    Object v = variables.scope.get(key);
+                    return variables.msg(() -> name + " = " + v, v);
                 } else return variables.msg("unset");
             }
         }
 
         // substitute $... for global named variables
         for (int j = 0; j < variables.length(); j++) {
+            if (lazy && variables.isDeferred(j)) continue;
             if (variables.get(j) instanceof String varn && varn.startsWith("$")) {
-                String key = varn.substring(1);
-                variables.set(cmd_index, j, global_variables.get(key));
+                variables.set(cmd_index, j, variables.scope.get(variables.varName(j, varn)));
                 if (j == 0) cmd = null;
             }
         }
@@ -692,9 +1409,10 @@ public class Interpreter {
         Object ctx = null;
 
         if (cmd != null) {
-            ctx = commands.get(cmd);
+            ctx = resolved && cmd == head ? plan.resolved[cmd_index] : commandTable().get(cmd);
             if (ctx == null && always_treat_singles_as_cmds) {
-                return variables.err("Unknown command: " + cmd);
+                String name = cmd;
+                return variables.fail(Result.Status.UNKNOWN_COMMAND, 0, (Supplier<String>) () -> "Unknown command: " + name);
             }
         }
 
@@ -706,13 +1424,21 @@ public class Interpreter {
         variables.currentCommand(cmd_index);
         int len = variables.length();
         int k = 0;
+        CommandMetrics m = metrics;
+        CommandMetrics.Stats stats = null;
         // check if
         if (len <= 1 && ctx instanceof VarFunc vf) {
-            ctx = vf.apply(variables.withLocalOffset(cmd_index, 1));
+            if (m == null) ctx = variables.withLocalOffset(cmd_index, 1).call(vf);
+            else ctx = apply(vf, variables.withLocalOffset(cmd_index, 1), m.root(vf, cmd));
             // assume vf is a root function and consumes no variables
             variables.consumed = 0;
             k++;
         }
+        return dispatch(ctx, k, len, cmd_index, cmd, variables, m, stats);
+    }
+    // routes through mappers and runs functions for the rest of a command's arguments, starting at k
+    private @Nullable Object dispatch(Object ctx, int k, int len, int cmd_index, String cmd, @NotNull VariableSet variables,
+                                      @Nullable CommandMetrics m, CommandMetrics.@Nullable Stats stats) {
         for (; k < len; k++) {
             // reset depth
             variables.currentCommand(cmd_index);
@@ -728,15 +1454,25 @@ public class Interpreter {
             // try to route to a sub command
             if (mapper != null && k > 0 && variables.has(k) && variables.get(k) instanceof String route) {
                 VarFunc f = mapper.get(route);
-                if (f != null) ctx = f;
-                else return variables.err("Unknown command \"" + route + "\" in \"" + variables.get(k-1) + "\"");
+                if (f != null) {
+                    ctx = f;
+                    if (m != null) stats = stats == null ? m.root(f, route) : m.route(stats, f, route);
+                }
+                else {
+                    Object parent = variables.get(k-1);
+                    return variables.fail(Result.Status.UNKNOWN_COMMAND, 0, (Supplier<String>) () -> "Unknown command \"" + route + "\" in \"" + parent + "\"");
+                }
             }
             // reset "consumed" because the previous get added
             variables.consumed = 0;
 
             // if current context is a function (both sub commands and command executions), run it
             if (ctx instanceof VarFunc vf) {
-                ctx = vf.apply(variables.withLocalOffset(cmd_index, k+1));
+                if (m == null) ctx = variables.withLocalOffset(cmd_index, k+1).call(vf);
+                else {
+                    if (stats == null) stats = m.root(vf, cmd);
+                    ctx = apply(vf, variables.withLocalOffset(cmd_index, k+1), stats);
+                }
                 // ensure
                 k += variables.consumed;
                 variables.consumed = 0;
@@ -747,17 +1483,123 @@ public class Interpreter {
         return variables.trySetLast(ctx);
     }
 
+    private @Nullable Object apply(@NotNull VarFunc vf, @NotNull VariableSet variables, CommandMetrics.@NotNull Stats stats) {
+        CommandEvent event = new CommandEvent();
+        event.begin();
+        boolean had_error = variables.error;
+        long t = System.nanoTime();
+        Object res;
+        try {
+            res = variables.call(vf);
+        } catch (RuntimeException e) {
+            stats.record(System.nanoTime() - t, true);
+            throw e;
+        }
+        boolean error = !had_error && variables.error;
+        stats.record(System.nanoTime() - t, error);
+        if (event.shouldCommit()) {
+            event.command = stats.getName();
+            event.error = error;
+            event.commit();
+        }
+        return res;
+    }
+
+    private static boolean hasSiblings(@NotNull CompiledCommand plan, int from, int to) {
+        int n = 0;
+        for (int slot = from; slot < to; slot++)
+            if (plan.subs[slot] >= 0 && ++n > 1) return true;
+        return false;
+    }
+    private boolean isBlocking(@NotNull CompiledCommand plan, int cmd_index, boolean resolved) {
+        String head = plan.heads[cmd_index];
+        if (head == null) return false;
+        VarFunc f = resolved ? plan.resolved[cmd_index] : commandTable().get(head);
+        return f != null && f.isBlocking();
+    }
+    private boolean isStreaming(@NotNull CompiledCommand plan, int cmd_index, boolean resolved) {
+        String head = plan.heads[cmd_index];
+        if (head == null) return false;
+        VarFunc f = resolved ? plan.resolved[cmd_index] : commandTable().get(head);
+        return f != null && f.isStreaming();
+    }
+    private boolean isLazy(@NotNull CompiledCommand plan, int cmd_index, boolean resolved) {
+        if (lazy_subcommands) return true;
+        String head = plan.heads[cmd_index];
+        if (head == null) return false;
+        VarFunc f = resolved ? plan.resolved[cmd_index] : commandTable().get(head);
+        return f != null && f.isLazy();
+    }
+    // runs every ( ) argument of a command at once and joins them before the command itself runs
+    private @Nullable Object handleSiblings(@NotNull CompiledCommand plan, int from, int to, @NotNull VariableSet variables, boolean resolved) {
+        int count = to - from;
+        VariableSet[] sets = new VariableSet[count];
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[count];
+        int last = -1;
+        for (int slot = from; slot < to; slot++) {
+            int sub = plan.subs[slot];
+            if (sub < 0) continue;
+            VariableSet vs = sets[slot - from] = new VariableSet(variables);
+            // one level below the command, as if its frame had been pushed
+            vs.outer = variables.outer + variables.depth + 1;
+            vs.forks = variables.forks + 1;
+            if (last >= 0) {
+                int s = last;
+                VariableSet lvs = sets[s - from];
+                futures[s - from] = CompletableFuture.supplyAsync(
+                        () -> evaluate(plan, plan.subs[s], lvs, resolved),
+                        isBlocking(plan, plan.subs[s], resolved) ? blocking_executor : cpu_executor
+                );
+            }
+            last = slot;
+        }
+        // the last one runs on this thread
+        Object tail;
+        try {
+            tail = evaluate(plan, plan.subs[last], sets[last - from], resolved);
+        } finally {
+            for (CompletableFuture<?> f : futures) if (f != null) try { f.join(); } catch (CompletionException ignored) {}
+        }
+        for (int slot = from; slot < to; slot++) {
+            VariableSet vs = sets[slot - from];
+            if (vs == null) continue;
+            Object obj;
+            if (slot == last) obj = tail;
+            else try {
+                obj = futures[slot - from].join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException re) throw re;
+                throw e;
+            }
+            if (vs.error) {
+                variables.error = true;
+                variables.error_status = vs.error_status;
+                variables.error_pos = vs.error_pos;
+                variables.msg = vs.msg;
+                return obj;
+            }
+            variables.setSlot(slot, obj);
+        }
+        variables.msg = null;
+        return null;
+    }
+
+    // the text, with the margin around the error, is only put together if someone reads it
     private @Nullable Object syntaxError(char @NotNull [] chars, @NotNull VariableSet variables, int next_start, String msg) {
-        int starti = Math.max(next_start - unqe_margin, 0);
+        int margin = unqe_margin;
+        return variables.fail(Result.Status.SYNTAX_ERROR, next_start, (Supplier<String>) () -> syntaxText(chars, next_start, msg, margin));
+    }
+    private static @NotNull String syntaxText(char @NotNull [] chars, int next_start, String msg, int margin) {
+        int starti = Math.max(next_start - margin, 0);
         int st_len = next_start - starti;
-        int endi = Math.min(chars.length, next_start + unqe_margin);
+        int endi = Math.min(chars.length, next_start + margin);
         int count = endi - starti;
         String base =  + next_start + ": ";
-        return variables.err(base +
+        return base +
                 new String(
                         chars,
                         starti,
                         count
-                ) + msg + "\n" + " ".repeat(base.length() + st_len - 1) + "^");
+                ) + msg + "\n" + " ".repeat(base.length() + st_len - 1) + "^";
     }
 }
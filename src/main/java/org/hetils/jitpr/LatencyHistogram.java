@@ -0,0 +1,93 @@
+package org.hetils.jitpr;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear latency histogram in the spirit of HdrHistogram: every power of two is split in 16 linear
+// sub buckets (about 6% precision) up to 2^40 ns. Recording is a single atomic increment on a stripe
+// picked by thread, so concurrent recorders rarely share a cache line.
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAGNITUDES = 41 - SUB_BITS;
+    private static final int BUCKETS = (MAGNITUDES + 1) * SUB;
+
+    private final AtomicLongArray[] stripes;
+    private final int mask;
+
+    public LatencyHistogram() {
+        int n = Integer.highestOneBit(Math.min(Runtime.getRuntime().availableProcessors(), 8) * 2 - 1);
+        this.stripes = new AtomicLongArray[n];
+        for (int i = 0; i < n; i++) stripes[i] = new AtomicLongArray(BUCKETS);
+        this.mask = n - 1;
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < SUB) return (int) Math.max(nanos, 0);
+        int mag = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS + 1;
+        if (mag > MAGNITUDES) return BUCKETS - 1;
+        return (mag << SUB_BITS) + (int) ((nanos >>> (mag - 1)) & (SUB - 1));
+    }
+    // lowest value falling into the bucket
+    static long floor(int bucket) {
+        int mag = bucket >>> SUB_BITS;
+        long sub = bucket & (SUB - 1);
+        return mag == 0 ? sub : (SUB + sub) << (mag - 1);
+    }
+
+    public void record(long nanos) {
+        stripes[(int) Thread.currentThread().getId() & mask].incrementAndGet(bucket(nanos));
+    }
+
+    private long[] merged() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray s : stripes)
+            for (int i = 0; i < BUCKETS; i++) counts[i] += s.get(i);
+        return counts;
+    }
+
+    public long count() {
+        long n = 0;
+        for (long c : merged()) n += c;
+        return n;
+    }
+
+    // upper bound of the bucket holding the given percentile, in nanoseconds
+    public long percentile(double percentile) {
+        long[] counts = merged();
+        long total = 0;
+        for (long c : counts) total += c;
+        if (total == 0) return 0;
+        long rank = Math.max((long) Math.ceil(total * percentile / 100), 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return i + 1 < BUCKETS ? floor(i + 1) - 1 : floor(i);
+        }
+        return floor(BUCKETS - 1);
+    }
+
+    public long max() {
+        long[] counts = merged();
+        for (int i = BUCKETS - 1; i >= 0; i--)
+            if (counts[i] != 0) return i + 1 < BUCKETS ? floor(i + 1) - 1 : floor(i);
+        return 0;
+    }
+
+    public double mean() {
+        long[] counts = merged();
+        long total = 0;
+        double sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] == 0) continue;
+            total += counts[i];
+            long hi = i + 1 < BUCKETS ? floor(i + 1) - 1 : floor(i);
+            sum += counts[i] * ((floor(i) + hi) / 2.0);
+        }
+        return total == 0 ? 0 : sum / total;
+    }
+
+    public void reset() {
+        for (AtomicLongArray s : stripes)
+            for (int i = 0; i < BUCKETS; i++) s.set(i, 0);
+    }
+}
@@ -0,0 +1,64 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+// Stands in for a command of a CommandModule until it's first needed, then forwards to the real one. Modules that
+// can't make their commands one by one are asked for their mapper once, by whichever command is needed first.
+final class LazyCommand implements VarFunc, MapperProvider {
+
+    static final class Module {
+        private final CommandModule module;
+        private volatile Mapper mapper;
+
+        Module(@NotNull CommandModule module) { this.module = module; }
+
+        @Nullable VarFunc command(@NotNull String name) {
+            VarFunc f = module.command(name);
+            return f != null ? f : mapper().get(name);
+        }
+        private @NotNull Mapper mapper() {
+            Mapper m = mapper;
+            if (m == null) synchronized (this) {
+                if ((m = mapper) == null) {
+                    m = module.getMapper();
+                    mapper = m = m != null ? m : new Mapper();
+                }
+            }
+            return m;
+        }
+    }
+
+    private final String name;
+    private final Module module;
+    private volatile VarFunc func;
+
+    LazyCommand(@NotNull String name, @NotNull Module module) {
+        this.name = name;
+        this.module = module;
+    }
+
+    // null if the module doesn't have it after all
+    private @Nullable VarFunc resolve() {
+        VarFunc f = func;
+        if (f == null) func = f = module.command(name);
+        return f;
+    }
+
+    @Override
+    public Object apply(Interpreter.VariableSet vars) {
+        VarFunc f = resolve();
+        return f != null ? f.apply(vars) : vars.err("Command " + name + " is missing from " + module.module.getClass().getName());
+    }
+
+    @Override public boolean isBlocking() { VarFunc f = resolve(); return f != null && f.isBlocking(); }
+    @Override public boolean isPure() { VarFunc f = resolve(); return f != null && f.isPure(); }
+    @Override public boolean isLazy() { VarFunc f = resolve(); return f != null && f.isLazy(); }
+    @Override public boolean isStreaming() { VarFunc f = resolve(); return f != null && f.isStreaming(); }
+
+    @Override
+    public Mapper getMapper() { return resolve() instanceof MapperProvider mp ? mp.getMapper() : null; }
+
+    @Override
+    public String toString() { return func != null ? func.toString() : "LazyCommand[" + name + "]"; }
+}
@@ -0,0 +1,292 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+// Single pass tokenizer, every char is looked at exactly once and every token copied at most twice. Its scratch
+// space is kept from one input to the next, so a thread can lex with the same one again and again.
+// Commands are numbered in pre-order (by their opening parenthesis) and their tokens end up
+// contiguous in a flat arena, addressed through a prefix-sum offset table.
+// A | standing at the start of a token splits a command into pipeline stages: every stage before the last becomes
+// a command of its own, whose output the next stage gets as an extra last argument.
+final class Lexer {
+
+    static boolean isEmpty(char c) { return c == ' ' || c == '\t' || c == '\r' || c == '\n'; }
+
+    private char[] chars;
+    private int start;
+    private int end;
+    private SymbolTable<VarFunc> registry;
+
+    // per command, in pre-order
+    private int commands = 0;
+    private int[] counts = new int[4];
+    private int[] tmp_start = new int[4];
+    private boolean[] single = new boolean[4];
+    private boolean[] piped = new boolean[4];
+    private boolean[] feeds = new boolean[4];
+    // source start and end of each command, two ints a command
+    private int[] spans = new int[8];
+
+    // tokens of the commands that are still open
+    private Object[] stack_lit = new Object[16];
+    private int[] stack_sub = new int[16];
+    private byte[] stack_kind = new byte[16];
+    private long[] stack_num = new long[16];
+    private int top = 0;
+
+    // tokens of closed commands, in closing order
+    private Object[] tmp_lit = new Object[16];
+    private int[] tmp_sub = new int[16];
+    private byte[] tmp_kind = new byte[16];
+    private long[] tmp_num = new long[16];
+    private int tmp_top = 0;
+
+    // open parentheses
+    private int[] open_cmd = new int[4];
+    private int[] open_base = new int[4];
+    private int[] open_pos = new int[4];
+    private int[] open_pipe = new int[4];
+    private int[] open_pipe_pos = new int[4];
+    private int depth = 0;
+
+    // the stage piped into the command being read, -1 if none, and where its | is
+    private int pipe = -1;
+    private int pipe_pos = 0;
+
+    private final StringBuilder buff = new StringBuilder();
+    private boolean val = false;
+
+    private void reset(char[] chars, int start, int end, SymbolTable<VarFunc> registry) {
+        this.chars = chars;
+        this.start = start;
+        this.end = end;
+        this.registry = registry;
+        commands = 0;
+        top = 0;
+        tmp_top = 0;
+        depth = 0;
+        pipe = -1;
+        pipe_pos = 0;
+        buff.setLength(0);
+        val = false;
+        Arrays.fill(piped, false);
+        Arrays.fill(feeds, false);
+    }
+    // lets go of the input and its tokens, which the plan has its own copies of
+    private void release() {
+        Arrays.fill(stack_lit, 0, top, null);
+        Arrays.fill(tmp_lit, 0, tmp_top, null);
+        chars = null;
+        registry = null;
+    }
+
+    private int newCommand() {
+        if (commands == counts.length) {
+            int n = commands << 1;
+            counts = Arrays.copyOf(counts, n);
+            tmp_start = Arrays.copyOf(tmp_start, n);
+            single = Arrays.copyOf(single, n);
+            piped = Arrays.copyOf(piped, n);
+            feeds = Arrays.copyOf(feeds, n);
+            spans = Arrays.copyOf(spans, n << 1);
+        }
+        spans[commands << 1] = -1;
+        return commands++;
+    }
+
+    private void push(Object lit, int sub, byte kind, long num) {
+        if (top == stack_lit.length) {
+            stack_lit = Arrays.copyOf(stack_lit, top << 1);
+            stack_sub = Arrays.copyOf(stack_sub, top << 1);
+            stack_kind = Arrays.copyOf(stack_kind, top << 1);
+            stack_num = Arrays.copyOf(stack_num, top << 1);
+        }
+        stack_lit[top] = lit;
+        stack_sub[top] = sub;
+        stack_kind[top] = kind;
+        stack_num[top++] = num;
+    }
+
+    private void flush() {
+        if (val) {
+            // command names are shared with the registry instead of allocated again
+            String token = registry.key(buff);
+            if (token == null) token = buff.toString();
+            // numbers are classified once here, so reading them back never parses
+            if (Numbers.isPlainLong(buff)) push(token, -1, CompiledCommand.LONG, Long.parseLong(token));
+            else if (Numbers.isPlainDouble(buff)) push(token, -1, CompiledCommand.DOUBLE, Double.doubleToRawLongBits(Double.parseDouble(token)));
+            else push(token, -1, CompiledCommand.STRING, 0);
+            buff.setLength(0);
+            val = false;
+        }
+    }
+
+    // moves the tokens of a finished command out of the open stack, false if it had none
+    private boolean close(int cmd, int base) {
+        boolean pending = val;
+        flush();
+        int count = top - base;
+        if (count == 0) return false;
+        if (tmp_top + count > tmp_lit.length) {
+            int n = Math.max(tmp_lit.length << 1, tmp_top + count);
+            tmp_lit = Arrays.copyOf(tmp_lit, n);
+            tmp_sub = Arrays.copyOf(tmp_sub, n);
+            tmp_kind = Arrays.copyOf(tmp_kind, n);
+            tmp_num = Arrays.copyOf(tmp_num, n);
+        }
+        System.arraycopy(stack_lit, base, tmp_lit, tmp_top, count);
+        System.arraycopy(stack_sub, base, tmp_sub, tmp_top, count);
+        System.arraycopy(stack_kind, base, tmp_kind, tmp_top, count);
+        System.arraycopy(stack_num, base, tmp_num, tmp_top, count);
+        Arrays.fill(stack_lit, base, top, null);
+        counts[cmd] = count;
+        tmp_start[cmd] = tmp_top;
+        // a lone unquoted literal is the command itself and takes no argument slot
+        single[cmd] = pending && count == 1;
+        tmp_top += count;
+        top = base;
+        return true;
+    }
+
+    // closes a command that may be the last stage of a pipeline, false if it's empty
+    private boolean closeStage(int cmd, int base) {
+        int from = pipe;
+        if (from >= 0) {
+            flush();
+            push(null, from, CompiledCommand.OBJECT, 0);
+            feeds[from] = true;
+            pipe = -1;
+        }
+        if (!close(cmd, base)) return false;
+        piped[cmd] = from >= 0;
+        return true;
+    }
+
+    @NotNull CompiledCommand lex(char @NotNull [] chars, int start, int end, @NotNull SymbolTable<VarFunc> registry) {
+        reset(chars, start, end, registry);
+        try {
+            return lex();
+        } finally {
+            release();
+        }
+    }
+    private @NotNull CompiledCommand lex() {
+        long registry_version = registry.version;
+        int cmd = newCommand();
+        spans[0] = start;
+        spans[1] = end + 1;
+        int base = 0;
+        char quote = 0;
+        int quote_pos = 0;
+        boolean escape = false;
+        for (int i = start; i <= end; i++) {
+            char c = chars[i];
+            if (escape) {
+                buff.append(c);
+                val = true;
+                escape = false;
+            }
+            else if (c == '\\') escape = true;
+            else if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                    flush();
+                } else {
+                    // the rest of the run up to the closing quote in one go
+                    int run = CharScanner.quoted(chars, i + 1, end + 1, quote);
+                    buff.append(chars, i, run - i);
+                    i = run - 1;
+                }
+            }
+            else if (c == '\"' || c == '\'') {
+                quote = c;
+                quote_pos = i + 1;
+                val = true;
+            }
+            else if (c == '(') {
+                flush();
+                if (depth == open_cmd.length) {
+                    open_cmd = Arrays.copyOf(open_cmd, depth << 1);
+                    open_base = Arrays.copyOf(open_base, depth << 1);
+                    open_pos = Arrays.copyOf(open_pos, depth << 1);
+                    open_pipe = Arrays.copyOf(open_pipe, depth << 1);
+                    open_pipe_pos = Arrays.copyOf(open_pipe_pos, depth << 1);
+                }
+                open_cmd[depth] = cmd;
+                open_base[depth] = base;
+                open_pipe[depth] = pipe;
+                open_pipe_pos[depth] = pipe_pos;
+                open_pos[depth++] = i + 1;
+                cmd = newCommand();
+                spans[cmd << 1] = i + 1;
+                base = top;
+                pipe = -1;
+            }
+            else if (c == ')' && depth > 0) {
+                if (pipe >= 0 && top == base && !val) return CompiledCommand.failed(chars, start, end, "Empty pipe stage at ", pipe_pos, registry_version);
+                // inset command, an empty one is just a null argument
+                if (closeStage(cmd, base)) {
+                    int sub = cmd;
+                    spans[(sub << 1) + 1] = i;
+                    cmd = open_cmd[--depth];
+                    base = open_base[depth];
+                    push(null, sub, CompiledCommand.OBJECT, 0);
+                } else {
+                    commands--;
+                    cmd = open_cmd[--depth];
+                    base = open_base[depth];
+                    push(null, -1, CompiledCommand.STRING, 0);
+                }
+                pipe = open_pipe[depth];
+                pipe_pos = open_pipe_pos[depth];
+            }
+            else if (c == '|' && !val) {
+                // what came before is a stage of its own, its output goes to what comes after
+                if (top == base) return CompiledCommand.failed(chars, start, end, "Empty pipe stage at ", i + 1, registry_version);
+                int stage = newCommand();
+                closeStage(stage, base);
+                pipe = stage;
+                pipe_pos = i + 1;
+            }
+            else if (isEmpty(c)) flush();
+            else {
+                int run = CharScanner.plain(chars, i + 1, end + 1);
+                buff.append(chars, i, run - i);
+                i = run - 1;
+                val = true;
+            }
+        }
+
+        // Errors
+        if (quote != 0) return CompiledCommand.failed(chars, start, end, "Unresolved quote at ", quote_pos, registry_version);
+        else if (depth != 0) return CompiledCommand.failed(chars, start, end, "Unresolved parentheses at ", open_pos[0], registry_version);
+        else if (escape) return CompiledCommand.failed(chars, start, end, "Empty escape at end", -1, registry_version);
+
+        if (pipe >= 0 && top == base && !val) return CompiledCommand.failed(chars, start, end, "Empty pipe stage at ", pipe_pos, registry_version);
+        if (!closeStage(cmd, base)) commands = 0;
+
+        // lay the arena out in pre-order
+        int[] offsets = new int[commands + 1];
+        for (int c = 0; c < commands; c++) offsets[c + 1] = offsets[c] + counts[c];
+        int slots = offsets[commands];
+        Object[] literals = new Object[slots];
+        int[] subs = new int[slots];
+        byte[] kinds = new byte[slots];
+        long[] numbers = new long[slots];
+        for (int c = 0; c < commands; c++) {
+            System.arraycopy(tmp_lit, tmp_start[c], literals, offsets[c], counts[c]);
+            System.arraycopy(tmp_sub, tmp_start[c], subs, offsets[c], counts[c]);
+            System.arraycopy(tmp_kind, tmp_start[c], kinds, offsets[c], counts[c]);
+            System.arraycopy(tmp_num, tmp_start[c], numbers, offsets[c], counts[c]);
+        }
+        return new CompiledCommand(
+                chars, start, end,
+                Arrays.copyOf(counts, commands), offsets,
+                literals, subs, kinds, numbers, Arrays.copyOf(single, commands),
+                Arrays.copyOf(piped, commands), Arrays.copyOf(feeds, commands), Arrays.copyOf(spans, commands << 1),
+                registry, registry_version
+        );
+    }
+}
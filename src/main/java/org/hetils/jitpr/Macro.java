@@ -0,0 +1,69 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+// A command defined by a template (see Interpreter.defineMacro and def), compiled once into a plan whose $1, $2...
+// slots are filled with the arguments of each call, so a call never lexes anything. The plan resolves the commands
+// the template names, it's compiled again the first time it runs after the registry changed.
+final class Macro implements VarFunc {
+
+    // the plan, per parameter slot the slot and which argument goes in it, and how many arguments it takes
+    record Template(CompiledCommand plan, int[] slots, int[] params, int arity) {}
+
+    final String name;
+    private final Interpreter interpreter;
+    private final char[] source;
+    private volatile Template template;
+
+    Macro(@NotNull Interpreter interpreter, @NotNull String name, char @NotNull [] source, @NotNull CompiledCommand plan) {
+        this.interpreter = interpreter;
+        this.name = name;
+        this.source = source;
+        this.template = template(plan);
+    }
+
+    @Override
+    public Object apply(Interpreter.VariableSet vars) { return interpreter.expand(this, vars); }
+
+    @NotNull Template template(@NotNull SymbolTable<VarFunc> table) {
+        Template t = template;
+        if (t.plan.registry_version != table.version)
+            template = t = template(CompiledCommand.compile(source, 0, source.length - 1, table));
+        return t;
+    }
+
+    private static Template template(CompiledCommand plan) {
+        int[] slots = new int[plan.slot_count];
+        int[] params = new int[plan.slot_count];
+        int n = 0;
+        int arity = 0;
+        for (int slot = 0; slot < plan.slot_count; slot++) {
+            int p = param(plan.names[slot]);
+            if (p == 0) continue;
+            slots[n] = slot;
+            params[n++] = p - 1;
+            arity = Math.max(arity, p);
+        }
+        // a parameter standing alone is the argument, not a read of the variable it names
+        for (int c = 0; c < plan.arg_counts.length; c++)
+            if (plan.single[c] && param(plan.names[plan.offsets[c]]) > 0) plan.single[c] = false;
+        return new Template(plan, Arrays.copyOf(slots, n), Arrays.copyOf(params, n), arity);
+    }
+
+    // n for $n, 0 if the name isn't a parameter
+    private static int param(String name) {
+        if (name == null || name.isEmpty() || name.length() > 4) return 0;
+        int n = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') return 0;
+            n = n * 10 + c - '0';
+        }
+        return n;
+    }
+
+    @Override
+    public String toString() { return "Macro[" + name + " " + new String(source) + "]"; }
+}
@@ -0,0 +1,128 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// The variables of a snapshot, read in place from the mapped file. The snapshot carries its own index, where each
+// entry starts and a hash table over them, so nothing is scanned on opening and names and values are only
+// decoded when they're asked for. Entries are a name hash, the name, a codec id and the encoded value, as
+// VariableJournal writes them.
+final class MappedVariables implements Iterable<Map.Entry<String, Object>> {
+
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    // only read through absolute gets and duplicates, so any number of threads can share it
+    private final ByteBuffer buf;
+    private final ValueCodec<?>[] codecs;
+    private final IntBuffer offsets;
+    // open addressing on the name hash, entry index + 1 per slot
+    private final IntBuffer table;
+    private final int mask;
+    // decoded values, filled in as they're read
+    private final Object[] values;
+
+    MappedVariables(@NotNull ByteBuffer buf, @NotNull IntBuffer offsets, @NotNull IntBuffer table, ValueCodec<?> @NotNull [] codecs) {
+        this.buf = buf;
+        this.codecs = codecs;
+        this.offsets = offsets;
+        this.table = table;
+        this.mask = table.capacity() - 1;
+        this.values = new Object[offsets.capacity()];
+    }
+
+    // the table written with a snapshot, a power of two at least twice the entries
+    static int @NotNull [] table(int @NotNull [] hashes, int count) {
+        int[] table = new int[Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1];
+        int mask = table.length - 1;
+        for (int i = 0; i < count; i++) {
+            int s = spread(hashes[i]) & mask;
+            while (table[s] != 0) s = (s + 1) & mask;
+            table[s] = i + 1;
+        }
+        return table;
+    }
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    int size() { return values.length; }
+
+    private int find(String key) {
+        int h = key.hashCode();
+        for (int s = spread(h) & mask; ; s = (s + 1) & mask) {
+            int e = table.get(s);
+            if (e == 0) return -1;
+            int p = offsets.get(e - 1);
+            if (buf.getInt(p) == h && nameEquals(key, p + 8, buf.getInt(p + 4))) return e - 1;
+        }
+    }
+    private boolean nameEquals(String key, int at, int len) {
+        if (len == key.length()) {
+            int i = 0;
+            for (; i < len; i++) {
+                byte b = buf.get(at + i);
+                if (b < 0) break;
+                if (b != key.charAt(i)) return false;
+            }
+            if (i == len) return true;
+        }
+        return name(at, len).equals(key);
+    }
+    private String name(int at, int len) {
+        byte[] b = new byte[len];
+        buf.get(at, b);
+        return new String(b, UTF_8);
+    }
+
+    boolean has(@NotNull String key) { return find(key) >= 0; }
+
+    // masked, as in a HashTrie
+    @Nullable Object get(@NotNull String key) {
+        int i = find(key);
+        return i < 0 ? null : value(i, true);
+    }
+    private Object value(int i, boolean keep) {
+        Object v = values[i];
+        if (v != null) return v;
+        int p = offsets.get(i);
+        int at = p + 8 + buf.getInt(p + 4);
+        int id = buf.get(at);
+        if (id == 0) v = VariableScope.NULL;
+        else {
+            int len = buf.getInt(at + 1);
+            v = codecs[id].decode(buf.duplicate().limit(at + 5 + len).position(at + 5));
+        }
+        if (!keep) return v;
+        // whoever decodes first wins, so every reader sees the same instance
+        Object w = VALUES.compareAndExchange(values, i, (Object) null, v);
+        return w != null ? w : v;
+    }
+
+    // values that weren't read yet are decoded without being kept
+    @Override
+    public @NotNull Iterator<Map.Entry<String, Object>> iterator() {
+        return new Iterator<>() {
+            private int i = 0;
+            @Override public boolean hasNext() { return i < values.length; }
+            @Override
+            public Map.Entry<String, Object> next() {
+                if (i >= values.length) throw new NoSuchElementException();
+                int p = offsets.get(i);
+                Map.Entry<String, Object> e = Map.entry(name(p + 8, buf.getInt(p + 4)), value(i, false));
+                i++;
+                return e;
+            }
+        };
+    }
+}
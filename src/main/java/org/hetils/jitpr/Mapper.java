@@ -1,20 +1,67 @@
 package org.hetils.jitpr;
 
+import org.jetbrains.annotations.NotNull;
+
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class Mapper {
     Map<String, VarFunc> mappings;
+    // compact lookup form, dropped again as soon as the mappings change
+    private volatile SymbolTable<VarFunc> frozen;
+    private volatile CompletionTrie trie;
+    private final VarFunc command = new Routing(this);
+
+    // routes into its mapper, and says so without being run
+    private record Routing(Mapper mapper) implements VarFunc, MapperProvider {
+        @Override
+        public Object apply(Interpreter.VariableSet vars) { return mapper; }
+        @Override
+        public Mapper getMapper() { return mapper; }
+    }
 
     public Mapper() { this(new HashMap<>()); }
     public Mapper(Map<String, VarFunc> mappings) {
         this.mappings = mappings;
     }
 
-    protected void setMappings(Map<String, VarFunc> mappings) { this.mappings = mappings; }
-    protected void addMapping(String route, VarFunc func) { mappings.put(route, func); }
+    // for routes registered once, later changes to the map itself aren't seen
+    public Mapper freeze() {
+        this.frozen = new SymbolTable<>(mappings, 0);
+        return this;
+    }
+    public boolean isFrozen() { return frozen != null; }
+
+    // a command routing into this mapper, register it instead of vars -> mapper so completion can see the routes
+    public VarFunc asCommand() { return command; }
+
+    protected void setMappings(Map<String, VarFunc> mappings) {
+        this.frozen = null;
+        this.trie = null;
+        this.mappings = mappings;
+    }
+    protected void addMapping(String route, VarFunc func) {
+        this.frozen = null;
+        this.trie = null;
+        mappings.put(route, func);
+    }
     public VarFunc get(String route) {
-        return mappings.get(route);
+        SymbolTable<VarFunc> f = frozen;
+        return f != null ? f.get(route) : mappings.get(route);
+    }
+    // end is exclusive
+    public VarFunc get(char @NotNull [] chars, int start, int end) {
+        SymbolTable<VarFunc> f = frozen;
+        return f != null ? f.get(chars, start, end) : mappings.get(new String(chars, start, end - start));
+    }
+
+    // routes starting with prefix, in order
+    public List<String> complete(@NotNull CharSequence prefix) {
+        CompletionTrie t = trie;
+        // an unfrozen map may have been changed behind our back
+        if (t == null || (frozen == null && t.size() != mappings.size())) trie = t = new CompletionTrie(mappings.keySet(), 0);
+        return t.complete(prefix);
     }
 
     @Override
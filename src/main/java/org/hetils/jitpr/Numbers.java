@@ -0,0 +1,81 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+
+// Exception free number checks, accepting exactly what Integer/Long.parseX accept.
+final class Numbers {
+    private Numbers() {}
+
+    static boolean isLong(@NotNull CharSequence s) { return fits(s, Long.MIN_VALUE, Long.MAX_VALUE); }
+    static boolean isInt(@NotNull CharSequence s) { return fits(s, Integer.MIN_VALUE, Integer.MAX_VALUE); }
+
+    private static boolean fits(@NotNull CharSequence s, long min, long max) {
+        int len = s.length();
+        if (len == 0) return false;
+        int i = 0;
+        boolean neg = false;
+        char first = s.charAt(0);
+        if (first == '-' || first == '+') {
+            if (len == 1) return false;
+            neg = first == '-';
+            i++;
+        }
+        // accumulate negatively, |MIN_VALUE| > MAX_VALUE
+        long limit = neg ? min : -max;
+        long mul_min = limit / 10;
+        long r = 0;
+        for (; i < len; i++) {
+            int d = Character.digit(s.charAt(i), 10);
+            if (d < 0 || r < mul_min) return false;
+            r *= 10;
+            if (r < limit + d) return false;
+            r -= d;
+        }
+        return true;
+    }
+
+    // plain ascii integer literal that surely fits a long, the common case the lexer stores unboxed
+    static boolean isPlainLong(@NotNull CharSequence s) {
+        int end = s.length();
+        int i = 0;
+        if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) i++;
+        if (i >= end || end - i > 18) return false;
+        for (; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+
+    // [+-]digits[.digits][e[+-]digits], a decimal form Double.parseDouble always accepts
+    static boolean isPlainDouble(@NotNull CharSequence s) {
+        int end = s.length();
+        int i = 0;
+        if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) i++;
+        int digits = 0;
+        while (i < end && isDigit(s.charAt(i))) { i++; digits++; }
+        if (i < end && s.charAt(i) == '.') {
+            i++;
+            while (i < end && isDigit(s.charAt(i))) { i++; digits++; }
+        }
+        if (digits == 0) return false;
+        if (i < end && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i++;
+            if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) i++;
+            int exp = 0;
+            while (i < end && isDigit(s.charAt(i))) { i++; exp++; }
+            if (exp == 0) return false;
+        }
+        return i == end;
+    }
+    private static boolean isDigit(char c) { return c >= '0' && c <= '9'; }
+
+    // false only when Double.parseDouble would surely throw, so the parse can be skipped
+    static boolean maybeDouble(@NotNull CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c >= '0' && c <= '9') || c == 'N' || c == 'I') return true;
+        }
+        return false;
+    }
+}
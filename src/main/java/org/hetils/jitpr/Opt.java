@@ -0,0 +1,13 @@
+package org.hetils.jitpr;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// An argument that may be left out, value is its default as it would be typed (empty is 0, false or null).
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface Opt {
+    String value() default "";
+}
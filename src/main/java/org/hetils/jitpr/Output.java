@@ -0,0 +1,63 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+// Text a command produces, written as it's made instead of built up and returned (see VariableSet.out). For the
+// command at the top of a run given an Appendable (Interpreter.process(input, out)) it goes straight into that,
+// anywhere else it's collected into the String done returns, so the command works the same nested in another.
+public final class Output implements Appendable {
+
+    private final Appendable target;
+    // null when writing straight to the caller
+    private final StringBuilder buffer;
+
+    Output(@NotNull Appendable target) {
+        this.target = target;
+        this.buffer = null;
+    }
+    Output() {
+        this.buffer = new StringBuilder();
+        this.target = buffer;
+    }
+
+    @Override
+    public @NotNull Output append(@Nullable CharSequence csq) {
+        try {
+            target.append(csq);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+    @Override
+    public @NotNull Output append(@Nullable CharSequence csq, int start, int end) {
+        try {
+            target.append(csq, start, end);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+    @Override
+    public @NotNull Output append(char c) {
+        try {
+            target.append(c);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+    // text as is, anything else as Objects.toString writes it
+    public @NotNull Output print(@Nullable Object obj) {
+        return append(obj instanceof CharSequence cs ? cs : String.valueOf(obj));
+    }
+
+    public boolean isDirect() { return buffer == null; }
+
+    // what the command returns, the text if it was collected, null if it's already with the caller
+    public @Nullable String done() { return buffer != null ? buffer.toString() : null; }
+}
@@ -0,0 +1,96 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Size bounded, approximately least recently used (see Recency). Lookups never lock; once the cache overflows
+// a single thread evicts the oldest tenth in one sweep, so eviction cost is amortized over many misses.
+class PlanCache {
+
+    private static final class Entry extends Recency.Stamped {
+        final CompiledCommand plan;
+        Entry(CompiledCommand plan, long stamp) {
+            this.plan = plan;
+            this.stamp = stamp;
+        }
+    }
+
+    private volatile int max_size;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final Recency recency = new Recency();
+    private final ConcurrentHashMap<String, Entry> plans = new ConcurrentHashMap<>();
+
+    PlanCache(int max_size) {
+        this.max_size = max_size;
+    }
+
+    // Stands for any CharSequence in a lookup, equal to the String key with the same chars, so input that isn't a
+    // String doesn't need to become one to find its plan. Reusable, one lookup at a time.
+    static final class Probe {
+        private CharSequence seq;
+        private int hash;
+
+        // the same hash a String of those chars has
+        private Probe of(@NotNull CharSequence seq) {
+            int h = 0;
+            for (int i = 0, n = seq.length(); i < n; i++) h = 31 * h + seq.charAt(i);
+            this.seq = seq;
+            this.hash = h;
+            return this;
+        }
+
+        @Override public int hashCode() { return hash; }
+        @Override public boolean equals(Object o) { return o instanceof String s && s.contentEquals(seq); }
+    }
+
+    @Nullable CompiledCommand get(@NotNull String input, long registry_version) {
+        return found(plans.get(input), registry_version);
+    }
+    @Nullable CompiledCommand get(@NotNull CharSequence input, @NotNull Probe probe, long registry_version) {
+        Entry e = plans.get(probe.of(input));
+        probe.seq = null;
+        return found(e, registry_version);
+    }
+    private @Nullable CompiledCommand found(@Nullable Entry e, long registry_version) {
+        // plans resolved against an older registry are stale
+        if (e != null && e.plan.registry_version == registry_version) {
+            recency.touch(e);
+            hits.increment();
+            return e.plan;
+        }
+        misses.increment();
+        return null;
+    }
+
+    void put(@NotNull String input, @NotNull CompiledCommand plan) {
+        int max = max_size;
+        if (max <= 0) return;
+        plans.put(input, new Entry(plan, recency.tick()));
+        if (plans.size() > max) evict(max);
+    }
+
+    private void evict(int max) {
+        recency.evict(plans, max);
+    }
+
+    void setMaxSize(int max_size) {
+        this.max_size = max_size;
+        if (max_size <= 0) plans.clear();
+        else if (plans.size() > max_size) evict(max_size);
+    }
+
+    int getMaxSize() { return max_size; }
+    int size() { return plans.size(); }
+    long getHits() { return hits.sum(); }
+    long getMisses() { return misses.sum(); }
+
+    void clear() {
+        plans.clear();
+        hits.reset();
+        misses.reset();
+    }
+}
@@ -0,0 +1,51 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Approximately least recently used eviction for the lock free caches (PlanCache, ResultCache). Inserts and hits
+// take their own tick from one clock, so the lowest stamps are the least recently used entries, and an overflowing
+// map loses exactly those down to nine tenths of its size, in one sweep by one thread.
+final class Recency {
+
+    abstract static class Stamped {
+        volatile long stamp;
+    }
+
+    private final AtomicLong clock = new AtomicLong();
+
+    long tick() { return clock.incrementAndGet(); }
+
+    // an entry that's already the newest isn't written again, so a hot loop over one entry doesn't advance the clock
+    void touch(@NotNull Stamped s) {
+        if (s.stamp != clock.get()) s.stamp = clock.incrementAndGet();
+    }
+
+    // how many it removed
+    synchronized int evict(@NotNull Map<?, ? extends Stamped> map, int max) {
+        int size = map.size();
+        if (size <= max) return 0;
+        int target = max - max / 10;
+        long[] stamps = new long[size];
+        int n = 0;
+        for (Stamped s : map.values()) {
+            if (n == stamps.length) break;
+            stamps[n++] = s.stamp;
+        }
+        int remove = n - target;
+        if (remove <= 0) return 0;
+        Arrays.sort(stamps, 0, n);
+        // stamps are unique, only an entry hit during the sweep gets past the cutoff and stays
+        long cutoff = stamps[remove - 1];
+        int[] removed = { 0 };
+        map.values().removeIf(s -> {
+            if (s.stamp > cutoff) return false;
+            removed[0]++;
+            return true;
+        });
+        return removed[0];
+    }
+}
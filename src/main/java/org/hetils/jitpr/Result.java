@@ -0,0 +1,67 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Objects;
+import java.util.function.Supplier;
+
+// What running a command came to, as Interpreter.execute returns it. Failures are a status instead of an
+// exception and messages are kept as they were given, text is only built when getMessage or toString asks.
+public final class Result {
+
+    public enum Status {
+        OK,
+        // a command reported an error (VariableSet.err)
+        ERROR,
+        SYNTAX_ERROR,
+        UNKNOWN_COMMAND,
+        // a command threw, see getCause
+        EXCEPTION
+    }
+
+    private static final Result NONE = new Result(Status.OK, null, null, 0, null);
+
+    private final Status status;
+    private final Object value;
+    // a String, or a Supplier of one until it's read
+    private Object message;
+    private final int position;
+    private final Throwable cause;
+
+    private Result(Status status, Object value, Object message, int position, Throwable cause) {
+        this.status = status;
+        this.value = value;
+        this.message = message;
+        this.position = position;
+        this.cause = cause;
+    }
+
+    static @NotNull Result of(@NotNull Status status, @Nullable Object value, @Nullable Object message, int position) {
+        if (status == Status.OK && value == null && message == null) return NONE;
+        return new Result(status, value, message, position, null);
+    }
+    static @NotNull Result thrown(@NotNull Throwable cause) { return new Result(Status.EXCEPTION, null, null, 0, cause); }
+
+    public @NotNull Status getStatus() { return status; }
+    public boolean isOk() { return status == Status.OK; }
+    // what the command returned, whatever the status
+    public @Nullable Object getValue() { return value; }
+    public @Nullable Throwable getCause() { return cause; }
+    // 1 based in the source, for syntax errors, 0 otherwise
+    public int getPosition() { return position; }
+
+    public boolean hasMessage() { return message != null || cause != null; }
+    public @Nullable String getMessage() {
+        Object m = message;
+        if (m instanceof Supplier<?> s) message = m = Objects.toString(s.get());
+        else if (m == null && cause != null) message = m = cause.toString();
+        return (String) m;
+    }
+
+    // the message if there is one, otherwise the value, as Interpreter.process prints it
+    @Override
+    public String toString() {
+        return hasMessage() ? getMessage() : Objects.toString(value);
+    }
+}
@@ -0,0 +1,120 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Results of pure commands (VarFunc.isPure) keyed by the function and the arguments it was given.
+// Approximately least recently used like PlanCache (see Recency), plus an optional time to live checked on lookup.
+class ResultCache {
+
+    static final class Key {
+        final String root;
+        final VarFunc func;
+        final Object[] args;
+        private final int hash;
+        Key(@Nullable String root, @NotNull VarFunc func, Object @NotNull [] args) {
+            this.root = root;
+            this.func = func;
+            this.args = args;
+            this.hash = System.identityHashCode(func) * 31 + Arrays.hashCode(args);
+        }
+        @Override
+        public int hashCode() { return hash; }
+        @Override
+        public boolean equals(Object o) {
+            // the function decides, the root name is only kept for invalidation
+            return o instanceof Key k && k.hash == hash && k.func == func && Arrays.equals(k.args, args);
+        }
+    }
+
+    // what a call left behind, replayed on a hit
+    static final class Result extends Recency.Stamped {
+        final Object value;
+        final int consumed;
+        final boolean msg_set;
+        // as VariableSet holds it, possibly not rendered yet
+        final Object msg;
+        final boolean error;
+        private final long expires;
+        Result(Object value, int consumed, boolean msg_set, Object msg, boolean error, long expires, long stamp) {
+            this.value = value;
+            this.consumed = consumed;
+            this.msg_set = msg_set;
+            this.msg = msg;
+            this.error = error;
+            this.expires = expires;
+            this.stamp = stamp;
+        }
+    }
+
+    private volatile int max_size;
+    private volatile long ttl_nanos = 0;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final Recency recency = new Recency();
+    private final ConcurrentHashMap<Key, Result> results = new ConcurrentHashMap<>();
+
+    ResultCache(int max_size) {
+        this.max_size = max_size;
+    }
+
+    boolean enabled() { return max_size > 0; }
+
+    @Nullable Result get(@NotNull Key key) {
+        Result r = results.get(key);
+        if (r != null) {
+            if (r.expires != 0 && System.nanoTime() - r.expires > 0) {
+                if (results.remove(key, r)) evictions.increment();
+            } else {
+                recency.touch(r);
+                hits.increment();
+                return r;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    void put(@NotNull Key key, Object value, int consumed, boolean msg_set, Object msg, boolean error) {
+        int max = max_size;
+        if (max <= 0) return;
+        long ttl = ttl_nanos;
+        long expires = ttl == 0 ? 0 : (System.nanoTime() + ttl) | 1;
+        results.put(key, new Result(value, consumed, msg_set, msg, error, expires, recency.tick()));
+        if (results.size() > max) evict(max);
+    }
+
+    private void evict(int max) {
+        evictions.add(recency.evict(results, max));
+    }
+
+    // drops everything computed under a root command or by a function that's being replaced
+    void invalidate(@Nullable String root, @Nullable VarFunc func) {
+        if (results.isEmpty()) return;
+        results.keySet().removeIf(k -> k.func == func || (root != null && root.equals(k.root)));
+    }
+
+    void setMaxSize(int max_size) {
+        this.max_size = max_size;
+        if (max_size <= 0) results.clear();
+        else if (results.size() > max_size) evict(max_size);
+    }
+    void setTtlNanos(long ttl_nanos) { this.ttl_nanos = Math.max(ttl_nanos, 0); }
+
+    int size() { return results.size(); }
+    long getHits() { return hits.sum(); }
+    long getMisses() { return misses.sum(); }
+    long getEvictions() { return evictions.sum(); }
+
+    void clear() {
+        results.clear();
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+}
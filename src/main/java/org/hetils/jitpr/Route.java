@@ -0,0 +1,17 @@
+package org.hetils.jitpr;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// A subcommand of the enclosing @Command class. A parameterless route returning a type with routes of its own
+// is a group, called once when bound and routed into like a Mapper.
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Route {
+    String value() default "";
+    boolean blocking() default false;
+    // see VarFunc.isPure
+    boolean pure() default false;
+}
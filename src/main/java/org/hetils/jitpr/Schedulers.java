@@ -0,0 +1,44 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Default executors. Cpu bound work goes to the common pool, blocking work to virtual threads
+// when the runtime has them (JDK 21+), otherwise to an unbounded pool of daemon threads.
+final class Schedulers {
+    private Schedulers() {}
+
+    static @NotNull Executor cpu() { return ForkJoinPool.commonPool(); }
+
+    static @NotNull Executor blocking() { return Blocking.EXECUTOR; }
+
+    static boolean virtualThreads() { return Blocking.VIRTUAL; }
+
+    private static final class Blocking {
+        static final boolean VIRTUAL;
+        static final ExecutorService EXECUTOR;
+        static {
+            ExecutorService ex;
+            boolean virtual;
+            try {
+                ex = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                virtual = true;
+            } catch (ReflectiveOperationException e) {
+                AtomicInteger n = new AtomicInteger();
+                ex = Executors.newCachedThreadPool(r -> {
+                    Thread t = new Thread(r, "jitpr-blocking-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+                virtual = false;
+            }
+            EXECUTOR = ex;
+            VIRTUAL = virtual;
+        }
+    }
+}
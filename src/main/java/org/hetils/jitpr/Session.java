@@ -0,0 +1,87 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+// A lightweight handle for running commands with its own variable scope.
+// Sessions share the interpreter's command registry and plan cache, one per thread runs without contention.
+public class Session {
+    private final Interpreter interpreter;
+    private final VariableScope scope;
+    // while one is open, commands read and write through it instead of the scope
+    private VariableScope.Transaction transaction;
+
+    Session(@NotNull Interpreter interpreter, @NotNull VariableScope scope) {
+        this.interpreter = interpreter;
+        this.scope = scope;
+    }
+
+    public @NotNull Interpreter getInterpreter() { return interpreter; }
+    public @NotNull VariableScope getScope() { return scope; }
+    public @NotNull Map<String, Object> getVariables() { return scope.asMap(); }
+
+    public Object getVar(String var_name) { return current().get(var_name); }
+    public Object setVar(String var_name, Object value) { return current().set(var_name, value); }
+
+    // a session over a snapshot of this one's variables, for a script that should see them as they are now
+    public @NotNull Session snapshot() { return new Session(interpreter, current().snapshot()); }
+
+    // Transactions, also run by the begin, commit and rollback commands. See VariableScope.Transaction.
+    public void begin() {
+        if (transaction != null) throw new IllegalStateException("Already in a transaction");
+        transaction = scope.begin();
+    }
+    public boolean commit() {
+        VariableScope.Transaction t = end();
+        return t.commit();
+    }
+    public void rollback() { end().rollback(); }
+    public boolean inTransaction() { return transaction != null; }
+    private @NotNull VariableScope.Transaction end() {
+        VariableScope.Transaction t = transaction;
+        if (t == null) throw new IllegalStateException("Not in a transaction");
+        transaction = null;
+        return t;
+    }
+    @NotNull VariableScope current() {
+        VariableScope.Transaction t = transaction;
+        return t != null ? t : scope;
+    }
+
+    public @NotNull String process(@NotNull String input) {
+        return interpreter.process(interpreter.compile(input), this);
+    }
+    public @NotNull String process(@NotNull CompiledCommand plan) {
+        return interpreter.process(plan, this);
+    }
+    public void process(@NotNull String input, @NotNull Appendable out) {
+        interpreter.process(interpreter.compile(input), this, out);
+    }
+    public void process(@NotNull CompiledCommand plan, @NotNull Appendable out) {
+        interpreter.process(plan, this, out);
+    }
+    public @NotNull Result execute(@NotNull String input) {
+        return interpreter.execute(interpreter.compile(input), this);
+    }
+    public @NotNull Result execute(@NotNull CompiledCommand plan) {
+        return interpreter.execute(plan, this);
+    }
+    public @NotNull Result execute(@NotNull String input, @NotNull Appendable out) {
+        return interpreter.execute(interpreter.compile(input), this, out);
+    }
+    public @NotNull Result execute(@NotNull CompiledCommand plan, @NotNull Appendable out) {
+        return interpreter.execute(plan, this, out);
+    }
+    public @Nullable Object handle(@NotNull String input) {
+        return interpreter.handle(interpreter.compile(input), this);
+    }
+    public @Nullable Object handle(@NotNull CompiledCommand plan) {
+        return interpreter.handle(plan, this);
+    }
+    public @NotNull CompletableFuture<Object> handleAsync(@NotNull String input) {
+        return interpreter.handleAsync(input, this);
+    }
+}
@@ -0,0 +1,40 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.stream.BaseStream;
+
+// A command that takes part in | pipelines element by element. It reads what the previous stage produces through
+// input, pulled as it goes, and an Iterator or Stream it returns is pulled the same way by the next stage, so a
+// pipeline only holds the elements in flight and stops producing as soon as the last stage stops reading.
+// Any other result ends the stream there. Outside of a pipeline, or at its head, the input is empty.
+@FunctionalInterface
+public interface StreamFunc extends VarFunc {
+
+    Object apply(@NotNull Interpreter.VariableSet vars, @NotNull Iterator<?> input);
+
+    @Override default Object apply(Interpreter.VariableSet vars) { return apply(vars, vars.input()); }
+    @Override default boolean isStreaming() { return true; }
+
+    // the elements of a value: those of an Iterator, Stream, Iterable or array, none for null, the value itself otherwise
+    static @NotNull Iterator<?> iterator(@Nullable Object value) {
+        if (value == null) return Collections.emptyIterator();
+        if (value instanceof Iterator<?> it) return it;
+        if (value instanceof BaseStream<?, ?> s) return s.iterator();
+        if (value instanceof Iterable<?> i) return i.iterator();
+        if (value instanceof Object[] a) return Arrays.asList(a).iterator();
+        return List.of(value).iterator();
+    }
+
+    // an Iterator or Stream read out into a List, anything else as it is
+    static @Nullable Object collect(@Nullable Object value) {
+        if (!isStream(value)) return value;
+        List<Object> list = new ArrayList<>();
+        iterator(value).forEachRemaining(list::add);
+        return list;
+    }
+
+    static boolean isStream(@Nullable Object value) { return value instanceof Iterator<?> || value instanceof BaseStream<?, ?>; }
+}
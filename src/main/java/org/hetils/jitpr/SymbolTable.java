@@ -0,0 +1,136 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// Immutable open addressing table from names to values that can be probed with a char range or any
+// CharSequence, so resolving a token never needs a String. Hashes follow String.hashCode, which lets
+// String probes reuse their cached hash.
+final class SymbolTable<V> {
+
+    private static final SymbolTable<?> EMPTY = new SymbolTable<>(Collections.emptyMap(), -1);
+
+    @SuppressWarnings("unchecked")
+    static <V> SymbolTable<V> empty() { return (SymbolTable<V>) EMPTY; }
+
+    final long version;
+    private final String[] keys;
+    private final Object[] values;
+    private final int mask;
+    private final int size;
+    // anything longer isn't in it, so long tokens aren't hashed for nothing
+    private final int max_length;
+
+    SymbolTable(@NotNull Map<String, ? extends V> map, long version) {
+        this.version = version;
+        String[] ks = new String[map.size()];
+        Object[] vs = new Object[ks.length];
+        int n = 0;
+        for (Map.Entry<String, ? extends V> e : map.entrySet()) {
+            if (n == ks.length) break;
+            if (e.getKey() == null) continue;
+            ks[n] = e.getKey();
+            vs[n++] = e.getValue();
+        }
+        int cap = Integer.highestOneBit(Math.max(n, 2) * 2 - 1) << 1;
+        this.keys = new String[cap];
+        this.values = new Object[cap];
+        this.mask = cap - 1;
+        this.size = n;
+        int max = 0;
+        for (int i = 0; i < n; i++) {
+            max = Math.max(max, ks[i].length());
+            int slot = spread(ks[i].hashCode()) & mask;
+            while (keys[slot] != null) slot = (slot + 1) & mask;
+            keys[slot] = ks[i];
+            values[slot] = vs[i];
+        }
+        this.max_length = max;
+    }
+
+    private static int spread(int h) { return h ^ (h >>> 16); }
+
+    static int hash(char @NotNull [] chars, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) h = 31 * h + chars[i];
+        return h;
+    }
+    static int hash(@NotNull CharSequence s) {
+        int h = 0;
+        for (int i = 0, len = s.length(); i < len; i++) h = 31 * h + s.charAt(i);
+        return h;
+    }
+
+    private int find(@NotNull String key) {
+        for (int slot = spread(key.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+            String k = keys[slot];
+            if (k == null) return -1;
+            if (k == key || k.equals(key)) return slot;
+        }
+    }
+    // end is exclusive
+    private int find(char @NotNull [] chars, int start, int end) {
+        int len = end - start;
+        if (len > max_length) return -1;
+        for (int slot = spread(hash(chars, start, end)) & mask; ; slot = (slot + 1) & mask) {
+            String k = keys[slot];
+            if (k == null) return -1;
+            if (k.length() == len) {
+                int i = 0;
+                while (i < len && k.charAt(i) == chars[start + i]) i++;
+                if (i == len) return slot;
+            }
+        }
+    }
+    private int find(@NotNull CharSequence s) {
+        if (s instanceof String str) return find(str);
+        int len = s.length();
+        if (len > max_length) return -1;
+        for (int slot = spread(hash(s)) & mask; ; slot = (slot + 1) & mask) {
+            String k = keys[slot];
+            if (k == null) return -1;
+            if (k.length() == len) {
+                int i = 0;
+                while (i < len && k.charAt(i) == s.charAt(i)) i++;
+                if (i == len) return slot;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable V get(@NotNull String key) {
+        int slot = find(key);
+        return slot < 0 ? null : (V) values[slot];
+    }
+    @SuppressWarnings("unchecked")
+    @Nullable V get(char @NotNull [] chars, int start, int end) {
+        int slot = find(chars, start, end);
+        return slot < 0 ? null : (V) values[slot];
+    }
+    @SuppressWarnings("unchecked")
+    @Nullable V get(@NotNull CharSequence s) {
+        int slot = find(s);
+        return slot < 0 ? null : (V) values[slot];
+    }
+    boolean contains(@NotNull CharSequence s) { return find(s) >= 0; }
+
+    // the table's own instance of the name, to share instead of allocating a new String
+    @Nullable String key(@NotNull CharSequence s) {
+        int slot = find(s);
+        return slot < 0 ? null : keys[slot];
+    }
+
+    int size() { return size; }
+
+    @NotNull List<String> keys() {
+        String[] out = new String[size];
+        int n = 0;
+        for (String k : keys) if (k != null) out[n++] = k;
+        return Arrays.asList(out);
+    }
+}
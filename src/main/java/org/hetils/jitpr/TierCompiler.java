@@ -0,0 +1,331 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+
+// Second tier for hot plans. A plan is turned into a hidden class whose run method calls every command's
+// VarFunc in evaluation order, straight-line, each from its own call site and through its own static final
+// field, so the JIT sees constant, monomorphic targets and can inline them. Routing past the first function,
+// variable lookups and errors are left to the interpreter through VariableSet.enter/finish/deliver.
+final class TierCompiler {
+    private TierCompiler() {}
+
+    // instances are only ever created by the generated classes
+    interface Tiered {
+        @Nullable Object run(@NotNull Interpreter.VariableSet variables);
+    }
+
+    // ~30 bytes of bytecode per command, bigger plans would pass HotSpot's 8000 byte limit and never be JIT compiled
+    static final int MAX_COMMANDS = 256;
+
+    private static final String NAME = "org/hetils/jitpr/HotPlan";
+    private static final String VARFUNC = "org/hetils/jitpr/VarFunc";
+    private static final String VARSET = "org/hetils/jitpr/Interpreter$VariableSet";
+    private static final String TIERED = "org/hetils/jitpr/TierCompiler$Tiered";
+
+    // plans the second tier can run exactly like the interpreter would
+    static boolean tierable(@NotNull CompiledCommand plan) {
+        int n = plan.arg_counts.length;
+        if (n == 0 || n > MAX_COMMANDS || plan.error != null) return false;
+        // lazy commands choose which arguments run, the straight line code runs them all up front
+        for (int c = 0; c < n; c++) if (plan.resolved[c] == null || plan.resolved[c].isLazy()) return false;
+        // pipelines decide per stage whether what flows in is read out first
+        for (int c = 0; c < n; c++) if (plan.piped[c]) return false;
+        // $ literals assign, read or substitute variables, leave those to the interpreter
+        for (int slot = 0; slot < plan.slot_count; slot++)
+            if (plan.literals[slot] instanceof String s && s.startsWith("$")) return false;
+        return true;
+    }
+
+    static @Nullable Tiered compile(@NotNull CompiledCommand plan) {
+        if (!tierable(plan)) return null;
+        try {
+            byte[] bytes = new ClassWriter(plan).write();
+            VarFunc[] funcs = plan.resolved.clone();
+            // pure functions go through the result cache
+            for (int c = 0; c < funcs.length; c++) {
+                VarFunc f = funcs[c];
+                if (f.isPure()) funcs[c] = vars -> vars.call(f);
+            }
+            MethodHandles.Lookup hidden = MethodHandles.lookup().defineHiddenClassWithClassData(bytes, funcs, true);
+            return (Tiered) hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            // stay interpreted
+            return null;
+        }
+    }
+
+    // evaluation order, children before their parent and left to right, computed without recursion
+    static int[] postOrder(@NotNull CompiledCommand plan) {
+        int n = plan.arg_counts.length;
+        int[] order = new int[n];
+        int[] stack = new int[n];
+        int[] next = new int[n];
+        int sp = 0, out = 0;
+        stack[sp++] = 0;
+        next[0] = plan.offsets[0];
+        while (sp > 0) {
+            int c = stack[sp - 1];
+            int end = plan.offsets[c + 1];
+            int slot = next[c];
+            while (slot < end && plan.subs[slot] < 0) slot++;
+            if (slot < end) {
+                next[c] = slot + 1;
+                int sub = plan.subs[slot];
+                next[sub] = plan.offsets[sub];
+                stack[sp++] = sub;
+            } else {
+                order[out++] = c;
+                sp--;
+            }
+        }
+        return order;
+    }
+
+    private static final class ClassWriter {
+        private final CompiledCommand plan;
+        private final ByteArrayOutputStream cp_bytes = new ByteArrayOutputStream();
+        private final DataOutputStream cp = new DataOutputStream(cp_bytes);
+        private final Map<String, Integer> constants = new HashMap<>();
+        private int cp_count = 1;
+
+        ClassWriter(CompiledCommand plan) {
+            this.plan = plan;
+        }
+
+        private int constant(String key, int tag, byte[] body) throws IOException {
+            Integer i = constants.get(key);
+            if (i != null) return i;
+            cp.writeByte(tag);
+            cp.write(body);
+            constants.put(key, cp_count);
+            return cp_count++;
+        }
+        private static byte[] u2(int... values) {
+            byte[] b = new byte[values.length * 2];
+            for (int i = 0; i < values.length; i++) {
+                b[i * 2] = (byte) (values[i] >>> 8);
+                b[i * 2 + 1] = (byte) values[i];
+            }
+            return b;
+        }
+        private int utf8(String s) throws IOException {
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            new DataOutputStream(b).writeUTF(s);
+            return constant("U" + s, 1, b.toByteArray());
+        }
+        private int cls(String name) throws IOException { return constant("C" + name, 7, u2(utf8(name))); }
+        private int string(String s) throws IOException { return constant("S" + s, 8, u2(utf8(s))); }
+        private int nameAndType(String name, String desc) throws IOException {
+            return constant("N" + name + desc, 12, u2(utf8(name), utf8(desc)));
+        }
+        private int field(String owner, String name, String desc) throws IOException {
+            return constant("F" + owner + name + desc, 9, u2(cls(owner), nameAndType(name, desc)));
+        }
+        private int method(String owner, String name, String desc) throws IOException {
+            return constant("M" + owner + name + desc, 10, u2(cls(owner), nameAndType(name, desc)));
+        }
+        private int imethod(String owner, String name, String desc) throws IOException {
+            return constant("I" + owner + name + desc, 11, u2(cls(owner), nameAndType(name, desc)));
+        }
+
+        private int integer(int value) throws IOException {
+            return constant("i" + value, 3, new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value });
+        }
+
+        private void push(DataOutputStream code, int value) throws IOException {
+            if (value <= 5) code.writeByte(0x03 + value); // iconst_n
+            else if (value <= Byte.MAX_VALUE) {
+                code.writeByte(0x10); // bipush
+                code.writeByte(value);
+            } else if (value <= Short.MAX_VALUE) {
+                code.writeByte(0x11); // sipush
+                code.writeShort(value);
+            } else {
+                // slot indexes of wide plans, past what sipush holds
+                code.writeByte(0x13); // ldc_w
+                code.writeShort(integer(value));
+            }
+        }
+
+        byte[] write() throws IOException {
+            int n = plan.arg_counts.length;
+            int this_cls = cls(NAME);
+            int super_cls = cls("java/lang/Object");
+            int iface = cls(TIERED);
+            int[] fields = new int[n];
+            for (int c = 0; c < n; c++) fields[c] = field(NAME, "f" + c, "L" + VARFUNC + ";");
+
+            // <init>
+            ByteArrayOutputStream init = new ByteArrayOutputStream();
+            DataOutputStream ic = new DataOutputStream(init);
+            ic.writeByte(0x2a); // aload_0
+            ic.writeByte(0xb7); // invokespecial
+            ic.writeShort(method("java/lang/Object", "<init>", "()V"));
+            ic.writeByte(0xb1); // return
+
+            // <clinit>, every command's function out of the class data
+            ByteArrayOutputStream clinit = new ByteArrayOutputStream();
+            DataOutputStream cc = new DataOutputStream(clinit);
+            cc.writeByte(0xb8); // invokestatic
+            cc.writeShort(method("java/lang/invoke/MethodHandles", "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;"));
+            cc.writeByte(0x13); // ldc_w
+            cc.writeShort(string("_"));
+            cc.writeByte(0x13);
+            cc.writeShort(cls("[Ljava/lang/Object;"));
+            cc.writeByte(0xb8);
+            cc.writeShort(method("java/lang/invoke/MethodHandles", "classData", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;"));
+            cc.writeByte(0xc0); // checkcast
+            cc.writeShort(cls("[Ljava/lang/Object;"));
+            cc.writeByte(0x4b); // astore_0
+            for (int c = 0; c < n; c++) {
+                cc.writeByte(0x2a); // aload_0
+                push(cc, c);
+                cc.writeByte(0x32); // aaload
+                cc.writeByte(0xc0);
+                cc.writeShort(cls(VARFUNC));
+                cc.writeByte(0xb3); // putstatic
+                cc.writeShort(fields[c]);
+            }
+            cc.writeByte(0xb1);
+
+            // run
+            int enter = method(VARSET, "enter", "(I)L" + VARSET + ";");
+            int finish = method(VARSET, "finish", "(Ljava/lang/Object;I)Ljava/lang/Object;");
+            int deliver = method(VARSET, "deliver", "(Ljava/lang/Object;I)Z");
+            int failure = method(VARSET, "failure", "()Ljava/lang/Object;");
+            int apply = imethod(VARFUNC, "apply", "(Ljava/lang/Object;)Ljava/lang/Object;");
+            int[] parent_slot = new int[n];
+            for (int slot = 0; slot < plan.slot_count; slot++) if (plan.subs[slot] >= 0) parent_slot[plan.subs[slot]] = slot;
+
+            ByteArrayOutputStream run = new ByteArrayOutputStream();
+            DataOutputStream rc = new DataOutputStream(run);
+            int[] jumps = new int[n];
+            int jump_count = 0;
+            for (int c : postOrder(plan)) {
+                rc.writeByte(0xb2); // getstatic
+                rc.writeShort(fields[c]);
+                rc.writeByte(0x2b); // aload_1
+                push(rc, c);
+                rc.writeByte(0xb6); // invokevirtual
+                rc.writeShort(enter);
+                rc.writeByte(0xb9); // invokeinterface
+                rc.writeShort(apply);
+                rc.writeByte(2);
+                rc.writeByte(0);
+                rc.writeByte(0x2b);
+                rc.writeByte(0x5f); // swap
+                push(rc, c);
+                rc.writeByte(0xb6);
+                rc.writeShort(finish);
+                if (c == 0) {
+                    rc.writeByte(0xb0); // areturn
+                    break;
+                }
+                rc.writeByte(0x2b);
+                rc.writeByte(0x5f);
+                push(rc, parent_slot[c]);
+                rc.writeByte(0xb6);
+                rc.writeShort(deliver);
+                jumps[jump_count++] = rc.size();
+                rc.writeByte(0x9a); // ifne, patched below
+                rc.writeShort(0);
+            }
+            int error_at = rc.size();
+            if (jump_count > 0) {
+                rc.writeByte(0x2b);
+                rc.writeByte(0xb6);
+                rc.writeShort(failure);
+                rc.writeByte(0xb0);
+            }
+            byte[] run_code = run.toByteArray();
+            for (int j = 0; j < jump_count; j++) {
+                int off = error_at - jumps[j];
+                run_code[jumps[j] + 1] = (byte) (off >>> 8);
+                run_code[jumps[j] + 2] = (byte) off;
+            }
+            if (run_code.length > 65535) throw new IOException("Plan too large");
+
+            int code_attr = utf8("Code");
+            int frames_attr = utf8("StackMapTable");
+            int init_name = utf8("<init>"), init_desc = utf8("()V");
+            int clinit_name = utf8("<clinit>");
+            int run_name = utf8("run"), run_desc = utf8("(L" + VARSET + ";)Ljava/lang/Object;");
+            int field_desc = utf8("L" + VARFUNC + ";");
+            int[] field_names = new int[n];
+            for (int c = 0; c < n; c++) field_names[c] = utf8("f" + c);
+
+            ByteArrayOutputStream out_bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(out_bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(61);
+            out.writeShort(cp_count);
+            out.write(cp_bytes.toByteArray());
+            out.writeShort(0x0010 | 0x0020); // final super
+            out.writeShort(this_cls);
+            out.writeShort(super_cls);
+            out.writeShort(1);
+            out.writeShort(iface);
+
+            out.writeShort(n);
+            for (int c = 0; c < n; c++) {
+                out.writeShort(0x0002 | 0x0008 | 0x0010); // private static final
+                out.writeShort(field_names[c]);
+                out.writeShort(field_desc);
+                out.writeShort(0);
+            }
+
+            out.writeShort(3);
+            writeMethod(out, 0x0001, init_name, init_desc, code_attr, 1, 1, init.toByteArray(), null, 0);
+            writeMethod(out, 0x0008, clinit_name, init_desc, code_attr, 3, 1, clinit.toByteArray(), null, 0);
+            // the only jump target is reached with nothing on the stack and the entry locals
+            byte[] frames = null;
+            if (jump_count > 0) {
+                ByteArrayOutputStream fb = new ByteArrayOutputStream();
+                DataOutputStream f = new DataOutputStream(fb);
+                f.writeShort(1);
+                if (error_at <= 63) f.writeByte(error_at); // same_frame
+                else {
+                    f.writeByte(251); // same_frame_extended
+                    f.writeShort(error_at);
+                }
+                frames = fb.toByteArray();
+            }
+            writeMethod(out, 0x0001, run_name, run_desc, code_attr, 3, 2, run_code, frames, frames_attr);
+            out.writeShort(0);
+            return out_bytes.toByteArray();
+        }
+
+        private static void writeMethod(DataOutputStream out, int access, int name, int desc, int code_attr,
+                                        int max_stack, int max_locals, byte[] code, byte[] frames, int frames_attr) throws IOException {
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(desc);
+            out.writeShort(1);
+            out.writeShort(code_attr);
+            int frames_len = frames == null ? 0 : 6 + frames.length;
+            out.writeInt(2 + 2 + 4 + code.length + 2 + 2 + frames_len);
+            out.writeShort(max_stack);
+            out.writeShort(max_locals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0);
+            if (frames == null) out.writeShort(0);
+            else {
+                out.writeShort(1);
+                out.writeShort(frames_attr);
+                out.writeInt(frames.length);
+                out.write(frames);
+            }
+        }
+    }
+}
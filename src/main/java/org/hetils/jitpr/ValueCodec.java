@@ -0,0 +1,27 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+// Stores values of one type for a VariableJournal.
+public interface ValueCodec<T> {
+
+    @NotNull Class<T> type();
+
+    // writes value from out's position on, a BufferOverflowException is retried with a bigger buffer
+    void encode(@NotNull T value, @NotNull ByteBuffer out);
+
+    // reads back a value, in's remaining bytes are exactly what encode wrote
+    @NotNull T decode(@NotNull ByteBuffer in);
+
+    static <T> @NotNull ValueCodec<T> of(@NotNull Class<T> type, @NotNull BiConsumer<T, ByteBuffer> encode, @NotNull Function<ByteBuffer, T> decode) {
+        return new ValueCodec<>() {
+            @Override public @NotNull Class<T> type() { return type; }
+            @Override public void encode(@NotNull T value, @NotNull ByteBuffer out) { encode.accept(value, out); }
+            @Override public @NotNull T decode(@NotNull ByteBuffer in) { return decode.apply(in); }
+        };
+    }
+}
@@ -2,4 +2,47 @@ package org.hetils.jitpr;
 
 import java.util.function.Function;
 
-public interface VarFunc extends Function<Interpreter.VariableSet, Object> {}
+public interface VarFunc extends Function<Interpreter.VariableSet, Object> {
+
+    // blocking commands (file reads, IPC...) are scheduled apart from the cpu bound ones
+    default boolean isBlocking() { return false; }
+
+    // pure commands depend on nothing but their arguments, so their results can be reused (see resultCacheSize)
+    default boolean isPure() { return false; }
+
+    // lazy commands get their ( ) arguments unevaluated, each one runs the first time it's read (see lazySubcommands)
+    default boolean isLazy() { return false; }
+
+    // streaming commands read a | pipeline's input element by element, others get it collected into a List (see StreamFunc)
+    default boolean isStreaming() { return false; }
+
+    static VarFunc blocking(VarFunc func) {
+        return new VarFunc() {
+            @Override public Object apply(Interpreter.VariableSet vars) { return func.apply(vars); }
+            @Override public boolean isBlocking() { return true; }
+            @Override public boolean isPure() { return func.isPure(); }
+            @Override public boolean isLazy() { return func.isLazy(); }
+            @Override public boolean isStreaming() { return func.isStreaming(); }
+        };
+    }
+
+    static VarFunc pure(VarFunc func) {
+        return new VarFunc() {
+            @Override public Object apply(Interpreter.VariableSet vars) { return func.apply(vars); }
+            @Override public boolean isBlocking() { return func.isBlocking(); }
+            @Override public boolean isPure() { return true; }
+            @Override public boolean isLazy() { return func.isLazy(); }
+            @Override public boolean isStreaming() { return func.isStreaming(); }
+        };
+    }
+
+    static VarFunc lazy(VarFunc func) {
+        return new VarFunc() {
+            @Override public Object apply(Interpreter.VariableSet vars) { return func.apply(vars); }
+            @Override public boolean isBlocking() { return func.isBlocking(); }
+            @Override public boolean isPure() { return func.isPure(); }
+            @Override public boolean isLazy() { return true; }
+            @Override public boolean isStreaming() { return func.isStreaming(); }
+        };
+    }
+}
@@ -0,0 +1,553 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+// Keeps a VariableScope's variables across restarts. Every write is appended to a journal file mapped into memory,
+// each record checksummed so one torn by a crash is dropped on recovery along with anything after it. Once the
+// journal outgrows compactAfter the variables are written out as a snapshot in the background and a new journal
+// is started. Recovery maps the snapshot, indexes it without decoding anything and replays the journals written
+// since, recovered values are decoded when they're first read. Values are stored by ValueCodecs, a variable holding a value no codec takes reads as unset
+// after a restart. Writes to a journaled scope are serialized, reads stay lock free.
+// A mapped journal survives the process crashing, sync makes it survive the machine going down too.
+public final class VariableJournal implements Closeable {
+
+    private static final int JOURNAL_MAGIC = 0x4a564a31;
+    private static final int SNAPSHOT_MAGIC = 0x4a565331;
+    // magic and generation
+    private static final int HEADER = 12;
+    // length, checksum and epoch of a record, the length and checksum cover the epoch and the operations
+    private static final int RECORD = 12;
+    private static final int MAX_JOURNAL = 1 << 30;
+    private static final byte SET = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CLEAR = 3;
+    // a variable set to null
+    private static final int NULL_ID = 0;
+    private static final String SNAPSHOT = "snapshot";
+    private static final String JOURNAL = "journal-";
+
+    private final Path dir;
+    private final ValueCodec<?>[] codecs = new ValueCodec<?>[128];
+    // codec id per value class, -1 for none
+    private final ConcurrentHashMap<Class<?>, Integer> ids = new ConcurrentHashMap<>();
+    private long compact_after = 64L << 20;
+    private int initial_size = 1 << 20;
+    private Executor compactor = Schedulers.blocking();
+
+    // the rest is guarded by this
+    private VariableScope scope;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private long generation;
+    private int pos;
+    // raised by every recovery, records older than the one before them were left behind by an earlier crash
+    private int epoch;
+    private ByteBuffer scratch = ByteBuffer.allocate(1024);
+    private byte[] text = new byte[256];
+    private final CRC32C crc = new CRC32C();
+    private boolean compacting = false;
+    private final Object compaction = new Object();
+
+    public VariableJournal(@NotNull Path dir) {
+        this.dir = dir;
+        codec(1, ValueCodec.of(String.class, (s, out) -> out.put(s.getBytes(UTF_8)), VariableJournal::string));
+        codec(2, ValueCodec.of(Integer.class, (i, out) -> out.putInt(i), ByteBuffer::getInt));
+        codec(3, ValueCodec.of(Long.class, (l, out) -> out.putLong(l), ByteBuffer::getLong));
+        codec(4, ValueCodec.of(Double.class, (d, out) -> out.putDouble(d), ByteBuffer::getDouble));
+        codec(5, ValueCodec.of(Float.class, (f, out) -> out.putFloat(f), ByteBuffer::getFloat));
+        codec(6, ValueCodec.of(Boolean.class, (b, out) -> out.put((byte) (b ? 1 : 0)), in -> in.get() != 0));
+        codec(7, ValueCodec.of(UUID.class, (u, out) -> out.putLong(u.getMostSignificantBits()).putLong(u.getLeastSignificantBits()),
+                in -> new UUID(in.getLong(), in.getLong())));
+        // what the time command returns
+        codec(8, ValueCodec.of(Date.class, (d, out) -> out.putLong(d.getTime()), in -> new Date(in.getLong())));
+        codec(9, ValueCodec.of(BigInteger.class, (b, out) -> out.put(b.toByteArray()), in -> new BigInteger(bytes(in))));
+        codec(10, ValueCodec.of(BigDecimal.class, (b, out) -> out.putInt(b.scale()).put(b.unscaledValue().toByteArray()),
+                in -> {
+                    int scale = in.getInt();
+                    return new BigDecimal(new BigInteger(bytes(in)), scale);
+                }));
+    }
+
+    private static byte[] bytes(ByteBuffer in) {
+        byte[] b = new byte[in.remaining()];
+        in.get(b);
+        return b;
+    }
+    private static String string(ByteBuffer in) { return new String(bytes(in), UTF_8); }
+
+    // Configuration, before open
+    // ids 1 to 10 are String, Integer, Long, Double, Float, Boolean, UUID, Date, BigInteger and BigDecimal, a codec
+    // given one of them replaces the built in one. Whatever wrote a journal needs the same codecs to read it back.
+    public @NotNull VariableJournal codec(int id, @NotNull ValueCodec<?> codec) {
+        if (id <= NULL_ID || id >= codecs.length) throw new IllegalArgumentException("Codec ids are 1 to " + (codecs.length - 1));
+        codecs[id] = codec;
+        ids.clear();
+        return this;
+    }
+    // journal bytes written before the variables are compacted into a snapshot
+    public @NotNull VariableJournal compactAfter(long bytes) {
+        this.compact_after = Math.max(bytes, HEADER);
+        return this;
+    }
+    // bytes mapped for a new journal, doubled whenever it runs out
+    public @NotNull VariableJournal initialSize(int bytes) {
+        this.initial_size = Math.min(Math.max(bytes, 4096), MAX_JOURNAL);
+        return this;
+    }
+    public @NotNull VariableJournal compactor(@NotNull Executor executor) {
+        this.compactor = executor;
+        return this;
+    }
+
+    // Recovers the variables into scope and journals its writes from then on. Variables scope already holds are
+    // kept over recovered ones. Open before the scope is shared, writes made while it opens may go unrecorded.
+    public synchronized @NotNull VariableJournal open(@NotNull VariableScope scope) throws IOException {
+        if (this.scope != null) throw new IllegalStateException("Journal already open");
+        if (scope.journal != null) throw new IllegalStateException("Scope already journaled");
+        Files.createDirectories(dir);
+        HashTrie vars = HashTrie.EMPTY;
+        long covered = 0;
+        Path snapshot = dir.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            vars = readSnapshot(snapshot);
+            covered = generation;
+        }
+        epoch = 0;
+        long last = 0;
+        int end = HEADER;
+        for (long g : journals()) {
+            // compacted, left behind by an interrupted compaction
+            if (g <= covered) {
+                Files.deleteIfExists(journal(g));
+                continue;
+            }
+            vars = replay(journal(g), vars);
+            last = g;
+            end = pos;
+        }
+        epoch++;
+        if (last != 0) {
+            channel = FileChannel.open(journal(last), READ, WRITE);
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(Math.max(channel.size(), initial_size), MAX_JOURNAL));
+            map.putInt(0, JOURNAL_MAGIC).putLong(4, last);
+            generation = last;
+            pos = end;
+        } else start(covered + 1);
+
+        HashTrie existing, merged;
+        do {
+            existing = scope.root();
+            merged = vars;
+            for (Map.Entry<String, Object> e : existing) merged = merged.put(e.getKey(), e.getValue());
+        } while (!scope.root(existing, merged));
+        this.scope = scope;
+        scope.journal = this;
+        if (!existing.isEmpty()) {
+            HashTrie kept = existing;
+            write(out -> {
+                for (Map.Entry<String, Object> e : kept) putOp(out, e.getKey(), e.getValue());
+            });
+        }
+        return this;
+    }
+
+    public synchronized boolean isOpen() { return scope != null; }
+    public synchronized long getGeneration() { return generation; }
+    // bytes in the current journal
+    public synchronized int getJournalSize() { return pos; }
+
+    // forces the journal to disk
+    public synchronized void sync() {
+        if (map != null) map.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (compaction) {
+            synchronized (this) {
+                if (scope == null) return;
+                scope.journal = null;
+                scope = null;
+                map.force();
+                channel.close();
+                channel = null;
+                map = null;
+            }
+        }
+    }
+
+    // Writes the variables as they are now into a new snapshot and drops the journals it covers.
+    public void compact() throws IOException {
+        synchronized (compaction) {
+            HashTrie vars;
+            long covered;
+            synchronized (this) {
+                if (scope == null) throw new IllegalStateException("Journal not open");
+                vars = scope.root();
+                covered = generation;
+                start(generation + 1);
+            }
+            writeSnapshot(vars, covered);
+            for (long g : journals()) if (g <= covered) Files.deleteIfExists(journal(g));
+        }
+    }
+    private void compactInBackground() {
+        try {
+            compact();
+        } catch (IOException | RuntimeException ignored) {
+            // the journals stay and are replayed as they are, next one to fill up tries again
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    // Called by VariableScope in place of its own writes, null value removes. The root is set before the record is
+    // written, so a compaction that starts from then on snapshots it, and compactions only start once this is let go
+    // of, a compactor running on the calling thread takes the locks in the same order as compact and close.
+    Object swap(@NotNull VariableScope scope, @NotNull String name, Object value) {
+        HashTrie t;
+        boolean compact = false;
+        synchronized (this) {
+            if (this.scope != scope) {
+                // closed in the meantime
+                while (true) {
+                    t = scope.root();
+                    HashTrie n = value == null ? t.remove(name) : t.put(name, value);
+                    if (n == t || scope.root(t, n)) return t.get(name);
+                }
+            }
+            t = scope.root();
+            HashTrie n = value == null ? t.remove(name) : t.put(name, value);
+            if (n != t) {
+                scope.root(t, n);
+                journal(scope, t, n, out -> putOp(out, name, value));
+                compact = compactionDue();
+            }
+        }
+        if (compact) compactor.execute(this::compactInBackground);
+        return t.get(name);
+    }
+    void clear(@NotNull VariableScope scope) {
+        boolean compact = false;
+        synchronized (this) {
+            HashTrie t = scope.root();
+            scope.root(t, HashTrie.EMPTY);
+            if (this.scope == scope) {
+                journal(scope, t, HashTrie.EMPTY, out -> out.put(CLEAR));
+                compact = compactionDue();
+            }
+        }
+        if (compact) compactor.execute(this::compactInBackground);
+    }
+    // a transaction's writes go in one record, so recovery has all of them or none
+    boolean commit(@NotNull VariableScope.Transaction tx) {
+        boolean compact = false;
+        synchronized (this) {
+            if (!tx.apply()) return false;
+            if (this.scope == tx.getTarget()) {
+                write(out -> {
+                    if (tx.isCleared()) out.put(CLEAR);
+                    for (Map.Entry<String, Object> e : tx.getWrites().entrySet())
+                        putOp(out, e.getKey(), VariableScope.Transaction.isRemoval(e.getValue()) ? null : e.getValue());
+                });
+                compact = compactionDue();
+            }
+        }
+        if (compact) compactor.execute(this::compactInBackground);
+        return true;
+    }
+    // a write that can't be journaled doesn't stay in the scope either
+    private void journal(@NotNull VariableScope scope, @NotNull HashTrie was, @NotNull HashTrie now, Consumer<ByteBuffer> ops) {
+        try {
+            write(ops);
+        } catch (RuntimeException e) {
+            scope.root(now, was);
+            throw e;
+        }
+    }
+    // claims the compaction once the journal is over compact_after, the caller starts it after letting go of this
+    private boolean compactionDue() {
+        if (pos <= compact_after || compacting) return false;
+        compacting = true;
+        return true;
+    }
+
+    private void write(Consumer<ByteBuffer> ops) {
+        while (true) {
+            try {
+                scratch.clear().position(RECORD);
+                ops.accept(scratch);
+                break;
+            } catch (BufferOverflowException e) {
+                scratch = ByteBuffer.allocate(scratch.capacity() << 1);
+            }
+        }
+        int end = scratch.position();
+        scratch.putInt(0, end - 8).putInt(8, epoch);
+        crc.reset();
+        crc.update(scratch.array(), 8, end - 8);
+        scratch.putInt(4, (int) crc.getValue());
+        try {
+            ensure(end);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        map.put(pos, scratch.array(), 0, end);
+        pos += end;
+    }
+    private void ensure(int need) throws IOException {
+        if (pos + need <= map.capacity()) return;
+        long cap = Math.max((long) map.capacity() << 1, (long) pos + need);
+        if (cap <= MAX_JOURNAL) map = channel.map(FileChannel.MapMode.READ_WRITE, 0, cap);
+        else if (HEADER + need > MAX_JOURNAL) throw new IOException("Journal record too large: " + need + " bytes");
+        else {
+            // the next generation, replayed after this one
+            start(generation + 1);
+            ensure(need);
+        }
+    }
+    private void start(long gen) throws IOException {
+        if (channel != null) {
+            map.force();
+            channel.close();
+        }
+        channel = FileChannel.open(journal(gen), CREATE, TRUNCATE_EXISTING, READ, WRITE);
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, initial_size);
+        map.putInt(0, JOURNAL_MAGIC).putLong(4, gen);
+        generation = gen;
+        pos = HEADER;
+    }
+
+    private Path journal(long gen) { return dir.resolve(JOURNAL + gen); }
+    private long[] journals() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.startsWith(JOURNAL) && Numbers.isLong(n.substring(JOURNAL.length())))
+                    .mapToLong(n -> Long.parseLong(n.substring(JOURNAL.length())))
+                    .sorted().toArray();
+        }
+    }
+
+    // Entries, as in journal records and snapshots: the name, the codec id and the length of the encoded value
+    private int idOf(Object value) {
+        if (value == VariableScope.NULL) return NULL_ID;
+        Class<?> type = value.getClass();
+        Integer id = ids.get(type);
+        if (id == null) {
+            id = -1;
+            for (int i = 1; i < codecs.length && id < 0; i++) if (codecs[i] != null && codecs[i].type() == type) id = i;
+            for (int i = 1; i < codecs.length && id < 0; i++) if (codecs[i] != null && codecs[i].type().isAssignableFrom(type)) id = i;
+            ids.put(type, id);
+        }
+        return id;
+    }
+    // false, and nothing written, if no codec takes the value
+    @SuppressWarnings("unchecked")
+    private boolean putEntry(ByteBuffer out, String name, Object value) {
+        int id = idOf(value);
+        if (id < 0) return false;
+        byte[] b = name.getBytes(UTF_8);
+        out.putInt(b.length).put(b).put((byte) id);
+        int at = out.position();
+        out.putInt(0);
+        if (id != NULL_ID) ((ValueCodec<Object>) codecs[id]).encode(value, out);
+        out.putInt(at, out.position() - at - 4);
+        return true;
+    }
+    // a value that can't be stored is recorded as a removal, so an older one doesn't come back
+    private void putOp(ByteBuffer out, String name, Object value) {
+        int at = out.position();
+        if (value != null) {
+            out.put(SET);
+            if (putEntry(out, name, value)) return;
+            out.position(at);
+        }
+        byte[] b = name.getBytes(UTF_8);
+        out.put(REMOVE).putInt(b.length).put(b);
+    }
+    private String getName(ByteBuffer in) throws IOException {
+        int len = in.getInt();
+        if (len < 0 || len > in.remaining()) throw new IOException("Corrupt variable name");
+        if (len > text.length) text = new byte[Math.max(len, text.length << 1)];
+        in.get(text, 0, len);
+        return new String(text, 0, len, UTF_8);
+    }
+    private Object getValue(ByteBuffer in) throws IOException {
+        int id = in.get();
+        int len = in.getInt();
+        int end = in.position() + len;
+        if (len < 0 || end > in.limit()) throw new IOException("Corrupt value");
+        if (id == NULL_ID) {
+            in.position(end);
+            return VariableScope.NULL;
+        }
+        ValueCodec<?> codec = id > 0 && id < codecs.length ? codecs[id] : null;
+        if (codec == null) throw new IOException("No codec for id " + id);
+        int limit = in.limit();
+        in.limit(end);
+        Object v = codec.decode(in);
+        in.limit(limit).position(end);
+        return v;
+    }
+
+    // Snapshots: header, entries each after the hash of its name, where each entry starts, the hash table over
+    // them (see MappedVariables), the entry count, the table size, the codec ids used and a checksum of it all
+    private void writeSnapshot(HashTrie vars, long covered) throws IOException {
+        Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+        CRC32C sum = new CRC32C();
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        ByteBuffer entry = ByteBuffer.allocate(1024);
+        int[] offsets = new int[1024];
+        int[] hashes = new int[1024];
+        long[] used = new long[2];
+        int count = 0;
+        long at = HEADER;
+        try (FileChannel ch = FileChannel.open(tmp, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            buf.putInt(SNAPSHOT_MAGIC).putLong(covered);
+            for (Map.Entry<String, Object> e : vars) {
+                int hash = e.getKey().hashCode();
+                boolean stored;
+                while (true) {
+                    try {
+                        entry.clear().putInt(hash);
+                        stored = putEntry(entry, e.getKey(), e.getValue());
+                        break;
+                    } catch (BufferOverflowException ex) {
+                        entry = ByteBuffer.allocate(entry.capacity() << 1);
+                    }
+                }
+                if (!stored) continue;
+                entry.flip();
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count << 1);
+                    hashes = Arrays.copyOf(hashes, count << 1);
+                }
+                offsets[count] = (int) at;
+                hashes[count++] = hash;
+                int id = idOf(e.getValue());
+                used[id >> 6] |= 1L << id;
+                at += entry.remaining();
+                if (at > Integer.MAX_VALUE) throw new IOException("Snapshot over 2 GB");
+                if (buf.remaining() < entry.remaining()) flush(ch, buf.flip(), sum);
+                // bigger than the buffer, written as it is
+                if (buf.remaining() < entry.remaining()) flush(ch, entry, sum);
+                else buf.put(entry);
+            }
+            int[] table = MappedVariables.table(hashes, count);
+            for (int i = 0; i < count + table.length; i++) {
+                if (buf.remaining() < 4) flush(ch, buf.flip(), sum);
+                buf.putInt(i < count ? offsets[i] : table[i - count]);
+            }
+            if (buf.remaining() < 24) flush(ch, buf.flip(), sum);
+            buf.putInt(count).putInt(table.length).putLong(used[0]).putLong(used[1]);
+            flush(ch, buf.flip(), sum);
+            buf.putInt((int) sum.getValue()).flip();
+            while (buf.hasRemaining()) ch.write(buf);
+            ch.force(true);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT), REPLACE_EXISTING, ATOMIC_MOVE);
+        // makes the rename itself durable, where directories can be synced
+        try (FileChannel d = FileChannel.open(dir, READ)) {
+            d.force(true);
+        } catch (IOException ignored) {}
+    }
+    private static void flush(FileChannel ch, ByteBuffer buf, CRC32C sum) throws IOException {
+        sum.update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        while (buf.hasRemaining()) ch.write(buf);
+        buf.clear();
+    }
+
+    private HashTrie readSnapshot(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, READ)) {
+            long size = ch.size();
+            if (size < HEADER + 28 || size > Integer.MAX_VALUE) throw new IOException("Corrupt snapshot " + file);
+            MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int body = (int) size - 4;
+            crc.reset();
+            crc.update(b.duplicate().limit(body));
+            if (b.getInt(0) != SNAPSHOT_MAGIC || (int) crc.getValue() != b.getInt(body)) throw new IOException("Corrupt snapshot " + file);
+            int trailer = body - 24;
+            int count = b.getInt(trailer);
+            int cap = b.getInt(trailer + 4);
+            long table_at = trailer - 4L * cap;
+            long offsets_at = table_at - 4L * count;
+            if (count < 0 || cap < 2 || Integer.bitCount(cap) != 1 || offsets_at < HEADER) throw new IOException("Corrupt snapshot " + file);
+            // every value must be readable, whatever is read first
+            for (int id = 1; id < codecs.length; id++)
+                if ((b.getLong(trailer + 8 + ((id >> 6) << 3)) & (1L << id)) != 0 && codecs[id] == null)
+                    throw new IOException("No codec for id " + id + " in " + file);
+            generation = b.getLong(4);
+            if (count == 0) return HashTrie.EMPTY;
+            // stays mapped after the channel is closed, for as long as the variables use it
+            return HashTrie.over(new MappedVariables(b,
+                    b.slice((int) offsets_at, count * 4).asIntBuffer(),
+                    b.slice((int) table_at, cap * 4).asIntBuffer(),
+                    codecs.clone()));
+        }
+    }
+
+    // applies the valid records of a journal, leaves pos after the last one
+    private HashTrie replay(Path file, HashTrie vars) throws IOException {
+        pos = HEADER;
+        try (FileChannel ch = FileChannel.open(file, READ)) {
+            long size = Math.min(ch.size(), MAX_JOURNAL);
+            if (size < HEADER) return vars;
+            MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (b.getInt(0) != JOURNAL_MAGIC) return vars;
+            ByteBuffer d = b.duplicate();
+            int p = HEADER, last = 0;
+            while (p + RECORD <= size) {
+                int len = b.getInt(p);
+                if (len < 4 || len > size - p - 8) break;
+                d.limit(p + 8 + len).position(p + 8);
+                crc.reset();
+                crc.update(d);
+                if ((int) crc.getValue() != b.getInt(p + 4)) break;
+                int ep = b.getInt(p + 8);
+                if (ep < last) break;
+                last = ep;
+                d.position(p + RECORD);
+                while (d.hasRemaining()) {
+                    switch (d.get()) {
+                        case SET -> {
+                            String name = getName(d);
+                            vars = vars.put(name, getValue(d));
+                        }
+                        case REMOVE -> vars = vars.remove(getName(d));
+                        case CLEAR -> vars = HashTrie.EMPTY;
+                        default -> throw new IOException("Corrupt journal " + file);
+                    }
+                }
+                p += 8 + len;
+            }
+            pos = p;
+            epoch = Math.max(epoch, last);
+            return vars;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package org.hetils.jitpr;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Named variables, safe to read and write from any number of threads without locking.
+// A scope with a parent falls back to it for names it doesn't hold itself, writes always stay local.
+// The variables are one immutable HashTrie swapped atomically on every write, so a read never waits, a snapshot
+// is a pointer copy and a transaction's writes all become visible in a single swap.
+public class VariableScope {
+
+    // the trie can't hold null, but a variable set to null is still set
+    static final Object NULL = new Object();
+    static Object mask(Object value) { return value == null ? NULL : value; }
+    static Object unmask(Object value) { return value == NULL ? null : value; }
+
+    private final AtomicReference<HashTrie> vars;
+    private final VariableScope parent;
+    private final Map<String, Object> view = new View();
+    // set while a VariableJournal records this scope, writes then go through it so they're journaled in order
+    volatile VariableJournal journal;
+
+    public VariableScope() { this(null); }
+    public VariableScope(@Nullable VariableScope parent) { this(parent, HashTrie.EMPTY); }
+    private VariableScope(@Nullable VariableScope parent, @NotNull HashTrie vars) {
+        this.parent = parent;
+        this.vars = new AtomicReference<>(vars);
+    }
+
+    public @Nullable VariableScope getParent() { return parent; }
+
+    public @Nullable Object get(@NotNull String name) {
+        Object v = vars.get().get(name);
+        if (v != null) return unmask(v);
+        return parent != null ? parent.get(name) : null;
+    }
+    public @Nullable Object getOrDefault(@NotNull String name, Object def) {
+        Object v = vars.get().get(name);
+        if (v != null) return unmask(v);
+        return parent != null ? parent.getOrDefault(name, def) : def;
+    }
+    public boolean has(@NotNull String name) {
+        return vars.get().get(name) != null || (parent != null && parent.has(name));
+    }
+
+    public @Nullable Object set(@NotNull String name, Object value) { return unmask(swap(name, mask(value))); }
+    public @Nullable Object remove(@NotNull String name) { return unmask(swap(name, null)); }
+    public void clear() {
+        VariableJournal j = journal;
+        if (j != null) j.clear(this);
+        else vars.set(HashTrie.EMPTY);
+    }
+
+    // the previous value, null value removes
+    private Object swap(String name, Object value) {
+        VariableJournal j = journal;
+        if (j != null) return j.swap(this, name, value);
+        while (true) {
+            HashTrie t = vars.get();
+            HashTrie n = value == null ? t.remove(name) : t.put(name, value);
+            if (n == t || vars.compareAndSet(t, n)) return t.get(name);
+        }
+    }
+
+    // An independent copy of this scope and its parents as they are now, in O(1) per scope. Reads of the copy
+    // stay consistent however this scope changes, writes to either one aren't seen by the other.
+    public @NotNull VariableScope snapshot() {
+        return new VariableScope(parent != null ? parent.snapshot() : null, vars.get());
+    }
+
+    // Starts a transaction on this scope, see Transaction.
+    public @NotNull Transaction begin() { return new Transaction(this); }
+
+    @NotNull HashTrie root() { return vars.get(); }
+    boolean root(@NotNull HashTrie expected, @NotNull HashTrie root) { return vars.compareAndSet(expected, root); }
+
+    // Reads and writes as of begin, writes held back until commit applies all of them to the scope at once.
+    // Commit fails, and nothing is applied, if a variable the transaction read from the scope has changed since.
+    // Only this scope's own variables are covered, the parent is read as it is. Meant for one thread at a time,
+    // once committed or rolled back it reads and writes the scope directly.
+    public static final class Transaction extends VariableScope {
+        // marks a removal in the write log
+        private static final Object REMOVED = new Object();
+
+        private final VariableScope target;
+        private final HashTrie base;
+        private final Set<String> reads = new HashSet<>();
+        private final Map<String, Object> writes = new LinkedHashMap<>();
+        private boolean cleared = false;
+        private boolean done = false;
+
+        private Transaction(@NotNull VariableScope target) {
+            this(target, target.vars.get());
+        }
+        private Transaction(@NotNull VariableScope target, @NotNull HashTrie base) {
+            super(target.parent, base);
+            this.target = target;
+            this.base = base;
+        }
+
+        public @NotNull VariableScope getTarget() { return target; }
+        public boolean isOpen() { return !done; }
+
+        private void read(String name) {
+            if (!cleared && !writes.containsKey(name)) reads.add(name);
+        }
+
+        @Override
+        public @Nullable Object get(@NotNull String name) {
+            if (done) return target.get(name);
+            read(name);
+            return super.get(name);
+        }
+        @Override
+        public @Nullable Object getOrDefault(@NotNull String name, Object def) {
+            if (done) return target.getOrDefault(name, def);
+            read(name);
+            return super.getOrDefault(name, def);
+        }
+        @Override
+        public boolean has(@NotNull String name) {
+            if (done) return target.has(name);
+            read(name);
+            return super.has(name);
+        }
+        @Override
+        public @Nullable Object set(@NotNull String name, Object value) {
+            if (done) return target.set(name, value);
+            writes.put(name, mask(value));
+            return super.set(name, value);
+        }
+        @Override
+        public @Nullable Object remove(@NotNull String name) {
+            if (done) return target.remove(name);
+            writes.put(name, REMOVED);
+            return super.remove(name);
+        }
+        @Override
+        public void clear() {
+            if (done) {
+                target.clear();
+                return;
+            }
+            cleared = true;
+            reads.clear();
+            writes.clear();
+            super.clear();
+        }
+
+        // true if every write was applied, false if there was a conflict and none were
+        public boolean commit() {
+            if (done) throw new IllegalStateException("Transaction already ended");
+            done = true;
+            VariableJournal j = target.journal;
+            return j != null ? j.commit(this) : apply();
+        }
+        boolean apply() {
+            while (true) {
+                HashTrie current = target.vars.get();
+                if (current != base) {
+                    // a clear stands for reading everything
+                    if (cleared) return false;
+                    for (String name : reads)
+                        if (current.get(name) != base.get(name)) return false;
+                }
+                HashTrie next = cleared ? HashTrie.EMPTY : current;
+                for (Map.Entry<String, Object> e : writes.entrySet())
+                    next = e.getValue() == REMOVED ? next.remove(e.getKey()) : next.put(e.getKey(), e.getValue());
+                if (next == current || target.vars.compareAndSet(current, next)) return true;
+            }
+        }
+        boolean isCleared() { return cleared; }
+        // masked values, REMOVED for removals, in the order they were made
+        @NotNull Map<String, Object> getWrites() { return writes; }
+        static boolean isRemoval(Object value) { return value == REMOVED; }
+        public void rollback() {
+            if (done) throw new IllegalStateException("Transaction already ended");
+            done = true;
+        }
+    }
+
+    // the variables held by this scope itself, without the parent's
+    public @NotNull Map<String, Object> asMap() { return view; }
+
+    private class View extends AbstractMap<String, Object> {
+        @Override public int size() { return vars.get().size(); }
+        @Override public boolean containsKey(Object key) { return key instanceof String s && vars.get().get(s) != null; }
+        @Override public Object get(Object key) { return key instanceof String s ? unmask(vars.get().get(s)) : null; }
+        @Override public Object put(String key, Object value) { return set(key, value); }
+        @Override public Object remove(Object key) { return key instanceof String s ? VariableScope.this.remove(s) : null; }
+        @Override public void clear() { VariableScope.this.clear(); }
+
+        // iterates the variables as they were when it started
+        @Override
+        public @NotNull Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<>() {
+                @Override public int size() { return vars.get().size(); }
+                @Override
+                public @NotNull Iterator<Entry<String, Object>> iterator() {
+                    Iterator<Entry<String, Object>> it = vars.get().iterator();
+                    return new Iterator<>() {
+                        private String last;
+                        @Override public boolean hasNext() { return it.hasNext(); }
+                        @Override
+                        public void remove() {
+                            if (last == null) throw new IllegalStateException();
+                            VariableScope.this.remove(last);
+                            last = null;
+                        }
+                        @Override
+                        public Entry<String, Object> next() {
+                            Entry<String, Object> e = it.next();
+                            last = e.getKey();
+                            return new SimpleEntry<>(e.getKey(), unmask(e.getValue())) {
+                                @Override
+                                public Object setValue(Object value) {
+                                    super.setValue(value);
+                                    return set(getKey(), value);
+                                }
+                            };
+                        }
+                    };
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.hetils.jitpr;
+
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+import org.jetbrains.annotations.NotNull;
+
+// CharScanner a vector at a time, only loaded once CharScanner found the module. Every char of a step is compared
+// against all the chars that matter at once, and only a step where one matched is looked at char by char. anyTrue
+// is the one mask operation, it's the one every JDK since 16 compiles to a single instruction.
+final class VectorScanner {
+    private VectorScanner() {}
+
+    private static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+    static final int LENGTH = SPECIES.length();
+
+    static int plain(char @NotNull [] chars, int from, int to) {
+        int i = from;
+        for (int bound = to - LENGTH; i <= bound; i += LENGTH) {
+            ShortVector v = ShortVector.fromCharArray(SPECIES, chars, i);
+            VectorMask<Short> m = v.eq((short) ' ')
+                    .or(v.eq((short) '\t'))
+                    .or(v.eq((short) '\n'))
+                    .or(v.eq((short) '\r'))
+                    .or(v.eq((short) '\"'))
+                    .or(v.eq((short) '\''))
+                    // ( and ) are 0x28 and 0x29
+                    .or(v.and((short) ~1).eq((short) '('))
+                    .or(v.eq((short) '\\'));
+            if (m.anyTrue()) return CharScanner.scalarPlain(chars, i, i + LENGTH);
+        }
+        return CharScanner.scalarPlain(chars, i, to);
+    }
+
+    static int quoted(char @NotNull [] chars, int from, int to, char quote) {
+        int i = from;
+        for (int bound = to - LENGTH; i <= bound; i += LENGTH) {
+            ShortVector v = ShortVector.fromCharArray(SPECIES, chars, i);
+            if (v.eq((short) quote).or(v.eq((short) '\\')).anyTrue()) return CharScanner.scalarQuoted(chars, i, i + LENGTH, quote);
+        }
+        return CharScanner.scalarQuoted(chars, i, to, quote);
+    }
+}